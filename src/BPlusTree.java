@@ -1,5 +1,7 @@
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Created by gyuu on 15/11/5.
@@ -16,6 +18,8 @@ class BPlusTree{
     public BufferManager bm;
     public String filename;
     public BufferNode myRootBlock;  //根块
+    private int rootBlockNum;  //根块的块号. 两次操作之间根块可能被换出缓冲区, 所以每次操作开始时按块号重新读入
+    private ArrayList<BufferNode> pinnedBlocks = new ArrayList<BufferNode>();  //本次操作中钉住的块, 操作结束时统一释放
     public Index myIndexInfo;  //索引信息体，由外部传入，可更新
 
     //构造函数1
@@ -36,10 +40,10 @@ class BPlusTree{
 
         //根据索引键大小计算分叉数
         int columnLength=indexInfo.columnLength;
-        //4k大小的块要一个字节分辨是叶子节点还是中间节点，四个字节记录索引键数目，4个字节说明父节点的块号
+        //每个块(大小为 bm.blockSize, 由数据库创建时的设置决定)要一个字节分辨是叶子节点还是中间节点，四个字节记录索引键数目，4个字节说明父节点的块号
         //还有一个POINTERLENGTH长度的指针指向下一个兄弟节点
         //而每个索引键包括8个字节的指针（前四个字节表示记录在表文件的那一块，后四个字节表示在该块的偏移量）和myIndexInfo.columnLength长度的键值
-        MAX_FOR_LEAF=(int)Math.floor((4096.0-1/*叶子标记*/-4/*键值数*/-POINTERLENGTH/*父亲块号*/-POINTERLENGTH/*下一块叶子块的块号*/)/(8+columnLength));
+        MAX_FOR_LEAF=(int)Math.floor((1.0*bm.blockSize-1/*叶子标记*/-4/*键值数*/-POINTERLENGTH/*父亲块号*/-POINTERLENGTH/*下一块叶子块的块号*/)/(8+columnLength));
         MIN_FOR_LEAF=(int)Math.ceil(1.0 * MAX_FOR_LEAF/ 2);
         MAX_CHILDREN_FOR_INTERNAL=MAX_FOR_LEAF;
         MIN_CHILDREN_FOR_INTERNAL=(int)Math.ceil(1.0 *(MAX_CHILDREN_FOR_INTERNAL)/ 2);
@@ -50,6 +54,7 @@ class BPlusTree{
         myIndexInfo.blockNum++;
 
         new LeafNode(myRootBlock=bm.createBufferNode(filename, 0)); //创建该索引文件的第一块，并用LeafNode类包装它
+        rootBlockNum=0;
 
     }
 
@@ -58,14 +63,14 @@ class BPlusTree{
         bm = buffer;
         keyType = indexInfo.type;
         int columnLength=indexInfo.columnLength;
-        MAX_FOR_LEAF=(int)Math.floor((4096.0-1/*叶子标记*/-4/*键值数*/-POINTERLENGTH/*父亲块号*/-POINTERLENGTH/*下一块叶子块的块号*/)/(8+columnLength));
+        MAX_FOR_LEAF=(int)Math.floor((1.0*bm.blockSize-1/*叶子标记*/-4/*键值数*/-POINTERLENGTH/*父亲块号*/-POINTERLENGTH/*下一块叶子块的块号*/)/(8+columnLength));
         MIN_FOR_LEAF=(int)Math.ceil(1.0 * MAX_FOR_LEAF/ 2);
         MAX_CHILDREN_FOR_INTERNAL=MAX_FOR_LEAF;
         MIN_CHILDREN_FOR_INTERNAL=(int)Math.ceil(1.0 *(MAX_CHILDREN_FOR_INTERNAL)/ 2);
 
         myIndexInfo=indexInfo;
         filename = myIndexInfo.indexName+".index";
-        new LeafNode(myRootBlock=bm.getBufferNode(filename,rootBlockNum),true); //注意是读已有块而创建新块
+        this.rootBlockNum=rootBlockNum; //根块在每次操作开始时才读入
 
     }
 
@@ -73,9 +78,18 @@ class BPlusTree{
     public void insert(byte[] originalKey,int blockOffset, int offset) throws IOException {
         if (originalKey == null)    throw new NullPointerException();
 
+        try{
+            myRootBlock=getBlock(rootBlockNum);
+            insertFromRoot(originalKey, blockOffset, offset);
+        }finally{
+            unpinAll();
+        }
+    }
+
+    private void insertFromRoot(byte[] originalKey,int blockOffset, int offset) throws IOException {
         Node rootNode;
         //根据块的信息，以不同的类型包装块
-        if(myRootBlock.data[0]=='I'){
+        if(myRootBlock.getByte(0)=='I'){
             rootNode=new InternalNode(myRootBlock,true);
         }
         else{
@@ -98,6 +112,7 @@ class BPlusTree{
 
         if(newBlock!=null){ //假如有返回，说明根块被更新了
             myRootBlock=newBlock;
+            rootBlockNum=newBlock.blockOffset;
         }
 
 //        CatalogManager.setIndexRoot(myIndexInfo.indexName, myRootBlock.blockOffset);
@@ -105,8 +120,17 @@ class BPlusTree{
 
     //以树为单位的等值查找
     public offsetInfo searchKey(byte[] originalKey){
+        try{
+            myRootBlock=getBlockForRead(rootBlockNum);
+            return searchFromRoot(originalKey);
+        }finally{
+            unpinAll();
+        }
+    }
+
+    private offsetInfo searchFromRoot(byte[] originalKey){
         Node rootNode;
-        if(myRootBlock.data[0]=='I'){
+        if(myRootBlock.getByte(0)=='I'){
             rootNode=new InternalNode(myRootBlock,true);
         }
         else{
@@ -133,8 +157,17 @@ class BPlusTree{
     public void delete(byte[] originalKey){
         if (originalKey == null)    throw new NullPointerException();
 
+        try{
+            myRootBlock=getBlock(rootBlockNum);
+            deleteFromRoot(originalKey);
+        }finally{
+            unpinAll();
+        }
+    }
+
+    private void deleteFromRoot(byte[] originalKey){
         Node rootNode;
-        if(myRootBlock.data[0]=='I'){
+        if(myRootBlock.getByte(0)=='I'){
             rootNode=new InternalNode(myRootBlock,true);
         }
         else{
@@ -157,11 +190,223 @@ class BPlusTree{
 
         if(newBlock!=null){ //假如有返回，说明根块被更新了
             myRootBlock=newBlock;
+            rootBlockNum=newBlock.blockOffset;
         }
 
 //        CatalogManager.setIndexRoot(myIndexInfo.indexName, myRootBlock.blockOffset);
     }
 
+    //自底向上批量建树. sorter 按键序依次给出全部索引项, 键值互不相同; 树必须是构造函数1刚建的空树.
+    //叶子按顺序写到块 0,1,2..., 每层中间节点接着往后写, 整个索引文件是顺序写出的, 不会发生分裂.
+    //每块只装 fillFactor 比例的索引项, 留出空位, 以后插入时不会马上分裂. 返回根块号.
+    public int bulkLoad(KeySorter sorter, double fillFactor) throws IOException {
+        long total=sorter.size();
+        if(total==0) return rootBlockNum; //空表, 保留构造函数建的空叶子
+
+        int columnLength=myIndexInfo.columnLength;
+        int perLeaf=Math.max(1, Math.min(MAX_FOR_LEAF, (int)(MAX_FOR_LEAF*fillFactor)));
+        //中间节点至少 3 个孩子, 平均分配后每个中间节点才至少有 2 个孩子(1 个路标)
+        int fanout=Math.max(3, Math.min(MAX_CHILDREN_FOR_INTERNAL+1, (int)((MAX_CHILDREN_FOR_INTERNAL+1)*fillFactor)));
+
+        //先算出每层的节点数和起始块号, 这样写叶子时就知道父块号, 不用回头修改
+        ArrayList<Integer> sizes=new ArrayList<Integer>();
+        ArrayList<Integer> bases=new ArrayList<Integer>();
+        int nodes=(int)((total+perLeaf-1)/perLeaf), base=0;
+        sizes.add(nodes);
+        bases.add(base);
+        while(nodes>1){
+            base+=nodes;
+            nodes=(nodes+fanout-1)/fanout;
+            sizes.add(nodes);
+            bases.add(base);
+        }
+        int levels=sizes.size();
+
+        //写叶子. 索引项平均分到各叶子, 最后一块不会特别空
+        int leaves=sizes.get(0);
+        byte[][] firstKeys=new byte[leaves][];  //每个节点的最小键值, 作为上一层的路标
+        for(int j=0;j<leaves;j++){
+            int count=(int)(total*(j+1)/leaves-total*j/leaves);
+            BufferNode blk=bm.pinNewBufferNode(filename, j);
+            try{
+                blk.setByte(0, (byte)'L');
+                blk.setInt(1, 4, count);
+                setParent(blk, levels>1 ? bases.get(1)+parentOf(j, leaves, sizes.get(1)) : -1);
+                for(int i=0;i<count;i++){
+                    sorter.next();
+                    if(i==0) firstKeys[j]=sorter.key.clone();
+                    blk.setKeyData(9+i*(columnLength+8), sorter.key, sorter.blockOffset, sorter.offset);
+                }
+                int nextPos=9+count*(columnLength+8);
+                if(j==leaves-1){
+                    for(int i=0;i<POINTERLENGTH;i++)
+                        blk.setByte(nextPos+i, (byte)'&');  //叶子链表的最后一块
+                }
+                else
+                    blk.setInt(nextPos, POINTERLENGTH, j+1);
+            }finally{
+                blk.unpin();
+            }
+        }
+
+        //逐层写中间节点
+        byte[][] childKeys=firstKeys;
+        for(int k=1;k<levels;k++){
+            int count=sizes.get(k), children=sizes.get(k-1), childBase=bases.get(k-1);
+            byte[][] nodeKeys=new byte[count][];
+            for(int p=0;p<count;p++){
+                int first=(int)((long)children*p/count), last=(int)((long)children*(p+1)/count); //孩子 [first, last)
+                BufferNode blk=bm.pinNewBufferNode(filename, bases.get(k)+p);
+                try{
+                    blk.setByte(0, (byte)'I');
+                    blk.setInt(1, 4, last-first-1);
+                    setParent(blk, k+1<levels ? bases.get(k+1)+parentOf(p, count, sizes.get(k+1)) : -1);
+                    blk.setInt(9, POINTERLENGTH, childBase+first);
+                    for(int c=first+1;c<last;c++){
+                        int pos=9+POINTERLENGTH+(c-first-1)*(columnLength+POINTERLENGTH);
+                        blk.setBytes(pos, childKeys[c]);
+                        blk.setInt(pos+columnLength, POINTERLENGTH, childBase+c);
+                    }
+                }finally{
+                    blk.unpin();
+                }
+                nodeKeys[p]=childKeys[first];
+            }
+            childKeys=nodeKeys;
+        }
+
+        rootBlockNum=bases.get(levels-1);
+        myIndexInfo.blockNum=rootBlockNum+1;
+        return rootBlockNum;
+    }
+
+    //children 个节点平均分给 parents 个父节点时, 第 child 个节点的父节点序号
+    private static int parentOf(int child, int children, int parents){
+        return (int)(((long)(child+1)*parents-1)/children);
+    }
+
+    //设置父块号, -1 表示没有父块(根)
+    private static void setParent(BufferNode blk, int parentBlockNum){
+        if(parentBlockNum<0){
+            for(int i=5;i<9;i++)
+                blk.setByte(i, (byte)'$');
+        }
+        else
+            blk.setInt(5, POINTERLENGTH, parentBlockNum);
+    }
+
+    //以树为单位的范围查找: 按键值从小到大返回 lowKey <= 键值 <= highKey 的索引项的位置信息.
+    //lowKey/highKey 为 null 表示该方向不限. 先从根向下找到第一个可能满足条件的叶子, 再沿叶子链表往后走.
+    public Iterator<offsetInfo> searchRange(byte[] lowKey, byte[] highKey){
+        int leafNum;
+        try{
+            leafNum=findLeaf(lowKey);
+        }finally{
+            unpinAll();
+        }
+        return new RangeIterator(leafNum, lowKey, highKey);
+    }
+
+    //从根向下找到 key 应在的叶子块号; key 为 null 时找最左边的叶子.
+    private int findLeaf(byte[] key){
+        BufferNode blk=getBlockForRead(rootBlockNum);
+        while(blk.getByte(0)=='I'){
+            int keyNum=blk.getInt(1, 4);
+            int i=0;
+            if(key!=null){
+                for(;i<keyNum;i++){
+                    int pos=9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH);
+                    if(compareKeyAt(key,blk,pos) < 0) break;
+                }
+            }
+            blk=getBlockForRead(blk.getInt(9+i*(myIndexInfo.columnLength+POINTERLENGTH), POINTERLENGTH));
+        }
+        return blk.blockOffset;
+    }
+
+    //沿叶子链表的范围迭代器. 每次读一整块叶子, 把其中满足条件的项取出后就释放该块,
+    //所以迭代过程中不钉住任何块, 调用者在两次 next() 之间可以随意读写其他块.
+    private class RangeIterator implements Iterator<offsetInfo>{
+        private int leafNum;   //下一块要读的叶子
+        private final byte[] lowKey, highKey;
+        private boolean done=false;   //已经到了链表末尾或超过了 highKey
+        private final ArrayList<offsetInfo> batch=new ArrayList<offsetInfo>();  //当前叶子中满足条件的项
+        private int next=0;
+        private BufferNode leaf;  //上一次读的叶子, mmap 读时重用
+
+        RangeIterator(int leafNum, byte[] lowKey, byte[] highKey){
+            this.leafNum=leafNum;
+            this.lowKey=lowKey;
+            this.highKey=highKey;
+        }
+
+        public boolean hasNext(){
+            while(next>=batch.size() && !done) readLeaf();  //删除后叶子可能是空的, 要接着往后读
+            return next<batch.size();
+        }
+
+        public offsetInfo next(){
+            if(!hasNext()) throw new NoSuchElementException();
+            return batch.get(next++);
+        }
+
+        private void readLeaf(){
+            batch.clear();
+            next=0;
+            leaf=bm.pinBufferNodeForRead(filename, leafNum, leaf); //mmap 读时重用同一个视图
+            try{
+                int keyNum=leaf.getInt(1, 4);
+                for(int i=0;i<keyNum;i++){
+                    int pos=9+i*(myIndexInfo.columnLength+8);
+                    if(lowKey!=null && compareKeyAt(lowKey,leaf,pos+8) > 0) continue;
+                    if(highKey!=null && compareKeyAt(highKey,leaf,pos+8) < 0){ //叶子内有序, 后面的都更大
+                        done=true;
+                        return;
+                    }
+                    offsetInfo off=new offsetInfo();
+                    off.offsetInfile=leaf.getInt(pos, 4);
+                    off.offsetInBlock=leaf.getInt(pos+4, 4);
+                    batch.add(off);
+                }
+                int nextPos=9+keyNum*(myIndexInfo.columnLength+8);
+                if(leaf.getByte(nextPos)=='&') done=true;  //叶子链表的最后一块
+                else leafNum=leaf.getInt(nextPos, POINTERLENGTH);
+            }finally{
+                leaf.unpin();
+            }
+        }
+    }
+
+    //读入一个已有的块并钉住它, 直到本次操作结束(unpinAll)前都不会被换出.
+    //分裂/合并时会同时持有多个块, 如果不钉住, 读入其他块时它们可能被替换掉.
+    private BufferNode getBlock(int blockNum){
+        BufferNode blk=bm.pinBufferNode(filename, blockNum); //查找和钉住是原子的, 多线程时也不会被换出
+        pinnedBlocks.add(blk);
+        return blk;
+    }
+
+    //只读地读入一个块并钉住它; 开启 mmap 时直接读文件映射.
+    //查找时每次只用一个块, 但别的线程可能同时申请块, 所以也要钉住到本次操作结束.
+    private BufferNode getBlockForRead(int blockNum){
+        BufferNode blk=bm.pinBufferNodeForRead(filename, blockNum);
+        pinnedBlocks.add(blk);
+        return blk;
+    }
+
+    //在索引文件中新建一个块并钉住它.
+    private BufferNode createBlock(int blockNum) throws IOException {
+        BufferNode blk=bm.pinNewBufferNode(filename, blockNum);
+        pinnedBlocks.add(blk);
+        return blk;
+    }
+
+    //释放本次操作中钉住的所有块.
+    private void unpinAll(){
+        for(BufferNode blk : pinnedBlocks)
+            blk.unpin();
+        pinnedBlocks.clear();
+    }
+
     //抽象类Node,为中间节点InternalNode和叶子节点LeafNode服务
     abstract class Node {
         BufferNode block;
@@ -176,29 +421,36 @@ class BPlusTree{
         abstract offsetInfo searchKey(byte[] Key);
     }
 
-    // 根据 key 的不同类型比较相对大小.
-    public int compareTo(byte[] buffer1,byte[] buffer2) {
-        if (keyType <= 0) { // -1 for int, 0 for float.
-            ByteBuffer buf = ByteBuffer.allocate(8);
-            buf.put(buffer1);
-            buf.put(buffer2);
-            buf.flip();
-            if (keyType == -1){
-                int num1 = buf.getInt();
-                int num2 = buf.getInt();
-                return num1 - num2;
-            }
-            else {
-                float num1 = buf.getFloat();
-                float num2 = buf.getFloat();
-                return (int)(num1 - num2);
-            }
-        }
-        else { // 1-255 for char.
-            String s1 = new String(buffer1);
-            String s2 = new String(buffer2);
-            return s1.compareTo(s2);
-        }
+    // 把 key 与块中 pos 处的键比较, 不复制块中的键. 这就是树中键值的顺序:
+    // 整数和浮点数按数值比较, 用 Integer.compare / Float.compare 而不用差值(整数相减会溢出, 浮点数的差截断后相差不到 1 的键会被当成相等);
+    // 字符型按无符号字节逐个比较, 非 ASCII 字符也是如此.
+    private int compareKeyAt(byte[] key, BufferNode blk, int pos) {
+        if (keyType == -1)
+            return Integer.compare(intOf(key), blk.getIntAt(pos));
+        else if (keyType == 0)
+            return Float.compare(Float.intBitsToFloat(intOf(key)), blk.getFloatAt(pos));
+        else
+            return -blk.compareBytesAt(pos, myIndexInfo.columnLength, key);
+    }
+
+    // 按树中的顺序比较两个键值 (与 compareKeyAt 一致, 字符型按无符号字节比较), 批量建树时排序用.
+    public int compareKeys(byte[] key1, byte[] key2) {
+        if (keyType == -1)
+            return Integer.compare(intOf(key1), intOf(key2));
+        else if (keyType == 0)
+            return Float.compare(Float.intBitsToFloat(intOf(key1)), Float.intBitsToFloat(intOf(key2)));
+        int n = Math.min(key1.length, key2.length);
+        for (int i = 0; i < n; i++) {
+            int d = (key1[i] & 0xFF) - (key2[i] & 0xFF);
+            if (d != 0)
+                return d;
+        }
+        return key1.length - key2.length;
+    }
+
+    // 按大端序把 4 个字节解释成整数.
+    private static int intOf(byte[] b) {
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
     }
 
     //中间节点类
@@ -207,11 +459,11 @@ class BPlusTree{
         InternalNode(BufferNode blk){
             block=blk; //将中间块包装
 
-            block.data[0]='I';  //标识为中间块
+            block.setByte(0, (byte)'I');  //标识为中间块
             block.setInt(1, 4, 0);//现在共有0个key值
             int i=5;
             for(;i<9;i++)
-                block.data[i]='$';  //说明没有父块标号
+                block.setByte(i, (byte)'$');  //说明没有父块标号
         }
 
         InternalNode(BufferNode blk,boolean t){
@@ -225,16 +477,16 @@ class BPlusTree{
             int i=0;
             for(;i<keyNum;i++){
                 int pos=9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH);
-                if(compareTo(insertKey, block.getBytes(pos,myIndexInfo.columnLength)) < 0) break; //找到了分支位置
+                if(compareKeyAt(insertKey,block,pos) < 0) break; //找到了分支位置
             }
 
             //获取分支子块的标号
             int nextBlockNum=block.getInt(9+i*(myIndexInfo.columnLength+POINTERLENGTH), POINTERLENGTH);
-            BufferNode nextBlock=bm.getBufferNode(filename, nextBlockNum); //将这个子块读进来
+            BufferNode nextBlock=getBlock(nextBlockNum); //将这个子块读进来
 
             //将这个子块进行节点包装
             Node nextNode;
-            if(nextBlock.data[0]=='I') nextNode=new InternalNode(nextBlock,true);
+            if(nextBlock.getByte(0)=='I') nextNode=new InternalNode(nextBlock,true);
             else nextNode=new LeafNode(nextBlock,true);
 
             return nextNode.insert(insertKey, blockOffset, offset); //进入中间节点的递归查找
@@ -255,82 +507,65 @@ class BPlusTree{
             }
 
             if(++keyNum>MAX_CHILDREN_FOR_INTERNAL){  //分裂节点
-                boolean half=false; //因为不能创建新内存空间，只能用这种麻烦的方法来分配子块的那些路标和指针
                 //创建一个新块并包装
                 int newBlockOffset=myIndexInfo.blockNum;
 //                CatalogManager.addIndexBlockNum(myIndexInfo.indexName);
                 myIndexInfo.blockNum++;
-                BufferNode newBlock=bm.createBufferNode(filename, newBlockOffset);
+                BufferNode newBlock=createBlock(newBlockOffset);
                 InternalNode newNode=new InternalNode(newBlock);
 
-                //我们知道新插入路标使超过了上限，也就是现有路标为MAX+1，我们总是为原来的块保留MIN个路标，这样新开的块有MAX+1-MIN个路标
-                block.setInt(1, 4, MIN_CHILDREN_FOR_INTERNAL);
-                newBlock.setInt(1, 4, MAX_CHILDREN_FOR_INTERNAL+1-MIN_CHILDREN_FOR_INTERNAL);
-
-                for(int i=0;i<MIN_CHILDREN_FOR_INTERNAL;i++){ //假如新路标需插在原来的块也就是在MIN之内
-
-                    int pos=9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH);
-                    if(compareTo(branchKey,block.getBytes(pos,myIndexInfo.columnLength))< 0){	//找到了路标插入的位置
-
-                        System.arraycopy(block.data,  //把第MIN_CHILDREN_FOR_INTERNA条开始的记录copy到新block
-                                9+(MIN_CHILDREN_FOR_INTERNAL)*(myIndexInfo.columnLength+POINTERLENGTH),
-                                newBlock.data,
-                                9,
-                                POINTERLENGTH+(MAX_CHILDREN_FOR_INTERNAL-MIN_CHILDREN_FOR_INTERNAL)*(myIndexInfo.columnLength+POINTERLENGTH));
-                        System.arraycopy(block.data,  //给新插入条留出位置
-                                9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH),
-                                block.data,
-                                9+POINTERLENGTH+(i+1)*(myIndexInfo.columnLength+POINTERLENGTH),
-                                //注意还要把原块的最后一个路标保留（不用于自身，但要作为父块的新插入路标）
-                                (MIN_CHILDREN_FOR_INTERNAL-1-i)*(myIndexInfo.columnLength+POINTERLENGTH)+myIndexInfo.columnLength);
-
-                        //设置新插入信息
-                        block.setInternalKey(9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH),branchKey,rightChild.block.blockOffset);
-
-                        half=true;
-                        break;
+                //把原有的 MAX 个路标和 MAX+1 个指针连同新路标一起按顺序读到内存里, 再分成两半写回.
+                //原来在块内挪动的做法在新路标落在新块末尾时会把它丢掉, 分到两块的路标数也不对, 树大到三层以上就会丢键值.
+                int step=myIndexInfo.columnLength+POINTERLENGTH;
+                byte[][] keys=new byte[keyNum][];
+                int[] children=new int[keyNum+1];
+                children[0]=block.getInt(9, POINTERLENGTH);
+                int n=0;
+                boolean inserted=false;
+                for(int i=0;i<keyNum-1;i++){
+                    int pos=9+POINTERLENGTH+i*step;
+                    if(!inserted && compareKeyAt(branchKey,block,pos) < 0){ //找到了路标插入的位置
+                        keys[n]=branchKey;
+                        children[++n]=rightChild.block.blockOffset;
+                        inserted=true;
                     }
+                    keys[n]=block.getBytes(pos, myIndexInfo.columnLength);
+                    children[++n]=block.getInt(pos+myIndexInfo.columnLength, POINTERLENGTH);
                 }
-                if(!half){ //新路标需插在新开的块也就是它的位置超出了MIN
-                    System.arraycopy(block.data,  //把第MIN_CHILDREN_FOR_INTERNA+1条开始的记录copy到新block
-                            9+(MIN_CHILDREN_FOR_INTERNAL+1)*(myIndexInfo.columnLength+POINTERLENGTH),
-                            newBlock.data,
-                            9,
-                            POINTERLENGTH+(MAX_CHILDREN_FOR_INTERNAL-MIN_CHILDREN_FOR_INTERNAL-1)*(myIndexInfo.columnLength+POINTERLENGTH));
-                    for(int i=0;i<MAX_CHILDREN_FOR_INTERNAL-MIN_CHILDREN_FOR_INTERNAL-1;i++){
-                        int pos=9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH);
-
-                        if(compareTo(branchKey,newBlock.getBytes(pos,myIndexInfo.columnLength)) < 0){
-                            System.arraycopy(newBlock.data,  //给新插入条留出位置
-                                    9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH),
-                                    newBlock.data,
-                                    9+POINTERLENGTH+(i+1)*(myIndexInfo.columnLength+POINTERLENGTH),
-                                    (MAX_CHILDREN_FOR_INTERNAL-MIN_CHILDREN_FOR_INTERNAL-1-i)*(myIndexInfo.columnLength+POINTERLENGTH));
-
-                            //设置新插入信息
-                            newBlock.setInternalKey(9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH),branchKey,rightChild.block.blockOffset);
-                            break;
-                        }
-                    }
+                if(!inserted){
+                    keys[n]=branchKey;
+                    children[++n]=rightChild.block.blockOffset;
                 }
 
+                //原块保留 MIN 个路标, 第 MIN 个路标交给父节点, 其余的放到新块
+                int leftNum=MIN_CHILDREN_FOR_INTERNAL;
+                block.setInt(1, 4, leftNum);
+                for(int i=0;i<leftNum;i++)
+                    block.setInternalKey(9+POINTERLENGTH+i*step, keys[i], children[i+1]);
+
+                newBlock.setInt(1, 4, keyNum-leftNum-1);
+                newBlock.setInt(9, POINTERLENGTH, children[leftNum+1]);
+                for(int i=leftNum+1;i<keyNum;i++)
+                    newBlock.setInternalKey(9+POINTERLENGTH+(i-leftNum-1)*step, keys[i], children[i+1]);
+
                 //找出原块与新块之间的路标，提供给父节点做分裂用
-                byte[] spiltKey=block.getBytes(9+POINTERLENGTH+(MIN_CHILDREN_FOR_INTERNAL)*(myIndexInfo.columnLength+POINTERLENGTH),
-                        myIndexInfo.columnLength);
+                byte[] spiltKey=keys[leftNum];
 
                 //更新新块的子块的父亲
                 for(int j=0;j<=newBlock.getInt(1, 4);j++){
                     int childBlockNum=newBlock.getInt(9+j*(myIndexInfo.columnLength+POINTERLENGTH),POINTERLENGTH);
-                    bm.getBufferNode(filename, childBlockNum).setInt(5, POINTERLENGTH, newBlockOffset);
+                    BufferNode childBlock=bm.pinBufferNode(filename, childBlockNum); //只是临时访问, 改完就释放
+                    childBlock.setInt(5, POINTERLENGTH, newBlockOffset);
+                    childBlock.unpin();
                 }
 
                 int parentBlockNum;
                 BufferNode ParentBlock;
                 InternalNode ParentNode;
-                if(block.data[5]=='$'){  //没有父节点，则创建父节点
+                if(block.getByte(5)=='$'){  //没有父节点，则创建父节点
                     //创建新块并包装
                     parentBlockNum=myIndexInfo.blockNum;
-                    ParentBlock=bm.getBufferNode(filename, parentBlockNum);
+                    ParentBlock=createBlock(parentBlockNum);
 //                    CatalogManager.addIndexBlockNum(myIndexInfo.indexName);
                     myIndexInfo.blockNum++;
 
@@ -343,7 +578,7 @@ class BPlusTree{
                 else{
                     parentBlockNum=block.getInt(5,POINTERLENGTH);
                     newBlock.setInt(5, POINTERLENGTH, parentBlockNum); //新块的父亲也就是旧块的父亲
-                    ParentBlock=bm.getBufferNode(filename, parentBlockNum);
+                    ParentBlock=getBlock(parentBlockNum);
                     ParentNode=new InternalNode(ParentBlock,true);
                 }
 
@@ -356,10 +591,10 @@ class BPlusTree{
                 int i;
                 for(i=0;i<keyNum-1;i++){
                     int pos=9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH);
-                    if(compareTo(branchKey,block.getBytes(pos,myIndexInfo.columnLength)) < 0){ //找到插入的位置
-                        System.arraycopy(block.data,
+                    if(compareKeyAt(branchKey,block,pos) < 0){ //找到插入的位置
+                        block.copyTo(
                                 9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH),
-                                block.data,
+                                block,
                                 9+POINTERLENGTH+(i+1)*(myIndexInfo.columnLength+POINTERLENGTH),
                                 (keyNum-1-i)*(myIndexInfo.columnLength+POINTERLENGTH));
 
@@ -387,13 +622,13 @@ class BPlusTree{
             for(;i<keyNum;i++){
                 int pos=9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH);
 
-                if(compareTo(key,block.getBytes(pos,myIndexInfo.columnLength)) < 0) break;
+                if(compareKeyAt(key,block,pos) < 0) break;
             }
             int nextBlockNum=block.getInt(9+i*(myIndexInfo.columnLength+POINTERLENGTH), POINTERLENGTH);
-            BufferNode nextBlock=bm.getBufferNode(filename, nextBlockNum);
+            BufferNode nextBlock=getBlockForRead(nextBlockNum);
             //根据块类别进行包装
             Node nextNode;
-            if(nextBlock.data[0]=='I') nextNode=new InternalNode(nextBlock,true);
+            if(nextBlock.getByte(0)=='I') nextNode=new InternalNode(nextBlock,true);
             else nextNode=new LeafNode(nextBlock,true);
 
             return nextNode.searchKey(key); //递归查找
@@ -405,193 +640,16 @@ class BPlusTree{
             int i=0;
             for(;i<keyNum;i++){
                 int pos=9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH);
-                if(compareTo(deleteKey,block.getBytes(pos,myIndexInfo.columnLength)) < 0) break;
+                if(compareKeyAt(deleteKey,block,pos) < 0) break;
             }
             int nextBlockNum=block.getInt(9+i*(myIndexInfo.columnLength+POINTERLENGTH), POINTERLENGTH);
-            BufferNode nextBlock=bm.getBufferNode(filename, nextBlockNum);
+            BufferNode nextBlock=getBlock(nextBlockNum);
             Node nextNode;
-            if(nextBlock.data[0]=='I') nextNode=new InternalNode(nextBlock,true);
+            if(nextBlock.getByte(0)=='I') nextNode=new InternalNode(nextBlock,true);
             else nextNode=new LeafNode(nextBlock,true);
 
             return nextNode.delete(deleteKey); //递归删除
         }
-
-        //删除过程中产生的节点合并，this块和after块以及它们之间的unionKey
-        BufferNode union(byte[] unionKey, BufferNode afterBlock){
-            int keyNum = block.getInt(1, 4);
-            int afterKeyNum= afterBlock.getInt(1, 4);
-
-            //将after块中的信息拷贝到this块的后面，注意留一个位置给unionKey
-            System.arraycopy(afterBlock.data,
-                    9,
-                    block.data,
-                    9+(keyNum+1)*(myIndexInfo.columnLength+POINTERLENGTH),
-                    POINTERLENGTH+afterKeyNum*(myIndexInfo.columnLength+POINTERLENGTH));
-
-            //填入unionKey
-            block.setBytes(9+keyNum*(myIndexInfo.columnLength+POINTERLENGTH)+POINTERLENGTH, unionKey);
-
-            //重新计算路标大小（原路标数+after路标数+unionKey）
-            keyNum=keyNum+afterKeyNum+1;
-            block.setInt(1, 4, keyNum);
-
-            //找到父块
-            int parentBlockNum=block.getInt(5, POINTERLENGTH);
-            BufferNode parentBlock=bm.getBufferNode(filename, parentBlockNum);
-
-            //请BufferNode销毁after块
-            //	afterBlock.isvalid=false;
-            myIndexInfo.blockNum--;
-
-            //在父块中删除after块
-            return (new InternalNode(parentBlock,true)).delete(afterBlock);
-
-        }
-
-        //删除过程中产生的兄弟块内容重排，this块和after块以及它们之间的internalKey,返回的changeKey是为了更新父块中它们两指针中间的键值
-        byte[] rearrangeAfter(BufferNode siblingBlock, byte[] InternalKey){ //兄弟节点在其后
-            int siblingKeyNum=siblingBlock.getInt(1, 4);
-            int keyNum = block.getInt(1, 4);
-
-            //要转移的一条指针内容
-            int blockOffset=siblingBlock.getInt(9,POINTERLENGTH);
-            //将internalKey和兄弟块的第一条指针复制到this块的尾部，路标数加1
-            block.setInternalKey(9+POINTERLENGTH+keyNum*(myIndexInfo.columnLength+POINTERLENGTH), InternalKey, blockOffset);
-            keyNum++;
-            block.setInt(1, 4, keyNum);
-
-            //兄弟块的路标数减1，获取兄弟块的第一条键值作为更新父块的键值，再将兄弟块后面的信息向前挪一条指针和路标的距离
-            siblingKeyNum--;
-            siblingBlock.setInt(1, 4, siblingKeyNum);
-            byte[] changeKey=siblingBlock.getBytes(9+POINTERLENGTH, myIndexInfo.columnLength);
-            System.arraycopy(siblingBlock.data, 9+POINTERLENGTH+myIndexInfo.columnLength, siblingBlock.data, 9, POINTERLENGTH+siblingKeyNum*(POINTERLENGTH+myIndexInfo.columnLength));
-
-            return changeKey;
-
-        }
-
-        byte[] rearrangeBefore(BufferNode siblingBlock, byte[] internalKey){ //兄弟节点在其前
-            int siblingKeyNum=siblingBlock.getInt(1, 4);
-            int keyNum = block.getInt(1, 4);
-
-            siblingKeyNum--;
-            siblingBlock.setInt(1, 4, siblingKeyNum);
-
-            //兄弟块的最后一条路标作为父块的更新路标，最后一条指针将转移给this块
-            byte[] changeKey=siblingBlock.getBytes(9+POINTERLENGTH+siblingKeyNum*(POINTERLENGTH+myIndexInfo.columnLength), myIndexInfo.columnLength);
-            int blockOffset=siblingBlock.getInt(9+(siblingKeyNum+1)*(POINTERLENGTH+myIndexInfo.columnLength), POINTERLENGTH);
-
-            //给新指针和路标让出位置
-            System.arraycopy(block.data, 9, block.data, 9+POINTERLENGTH+myIndexInfo.columnLength, POINTERLENGTH+keyNum*(POINTERLENGTH+myIndexInfo.columnLength));
-            block.setInt(9, POINTERLENGTH, blockOffset); //插入从兄弟块挪来的这条指针
-            block.setBytes(9+POINTERLENGTH, internalKey); //插入internalKey
-            keyNum++;
-            block.setInt(1, 4, keyNum);
-
-            return changeKey;
-        }
-
-        //修改posBlockNum标号后面的路标(给重排后的节点的父节点使用)
-        public void exchange(byte[] changeKey,int posBlockNum){
-            int keyNum = block.getInt(1, 4);
-
-            int i=0;
-            for(;i<keyNum;i++){
-                int pos=9+i*(myIndexInfo.columnLength+POINTERLENGTH);
-                int blockNum=block.getInt(pos,POINTERLENGTH);
-                if(blockNum==posBlockNum) break;
-            }
-
-            if(i<keyNum) block.setBytes(9+i*(myIndexInfo.columnLength+POINTERLENGTH)+POINTERLENGTH, changeKey);
-        }
-
-        //在中间节点中删除一个子块信息（以及他前面的那条路标）
-        BufferNode	delete(BufferNode blk){
-            int keyNum = block.getInt(1, 4);
-
-            for(int i=0;i<=keyNum;i++){
-                int pos=9+i*(myIndexInfo.columnLength+POINTERLENGTH);
-                int ptr=block.getInt(pos, POINTERLENGTH);
-                if(ptr==blk.blockOffset){ //如果找到了子块标号
-                    System.arraycopy(block.data, //把这条标号和前面的路标都移除
-                            9+POINTERLENGTH+(i-1)*(myIndexInfo.columnLength+POINTERLENGTH),
-                            block.data,
-                            9+POINTERLENGTH+i*(myIndexInfo.columnLength+POINTERLENGTH),
-                            (keyNum-i)*(myIndexInfo.columnLength+POINTERLENGTH));
-                    keyNum--;
-                    block.setInt(1, 4, keyNum);
-
-                    if(keyNum >=MIN_CHILDREN_FOR_INTERNAL) return null; //? //移除后直接结束
-
-                    if(block.data[5]=='$'){  //还是用'R'比较好? //没有父节点时
-
-                        if(keyNum==0){	//没有路标，只有一个子块标号时，把它的子块作为根块，把this块删除
-                            //block.isvalid=false;
-                            myIndexInfo.blockNum--;
-                            return bm.getBufferNode(filename, block.getInt(9, POINTERLENGTH));
-                        }
-
-                        return null;
-                    }
-
-                    //找到父亲块
-                    int parentBlockNum=block.getInt(5, POINTERLENGTH);
-                    BufferNode parentBlock=bm.getBufferNode(filename, parentBlockNum);
-                    int parentKeyNum=parentBlock.getInt(1, 4);
-
-                    int sibling;
-                    BufferNode siblingBlock;
-                    int j=0;
-                    //查找后续兄弟块
-                    for(;j<parentKeyNum;j++){
-                        int ppos=9+j*(myIndexInfo.columnLength+POINTERLENGTH);
-                        if(block.blockOffset==parentBlock.getInt(ppos, POINTERLENGTH)){
-                            //读到后续兄弟块
-                            sibling=parentBlock.getInt(ppos+POINTERLENGTH+myIndexInfo.columnLength, POINTERLENGTH);
-                            siblingBlock=bm.getBufferNode(filename, sibling);
-
-                            byte[] unionKey=parentBlock.getBytes(ppos+POINTERLENGTH, myIndexInfo.columnLength);
-
-                            //能够合并
-                            if((siblingBlock.getInt(1, 4)+keyNum)<=MAX_CHILDREN_FOR_INTERNAL){
-                                return this.union(unionKey,siblingBlock);
-                            }
-
-                            //两个节点原来都是MIN_FOR_LEAF，delete一个以后的情况没考虑，这个时候会涉及三个节点
-                            //这种情况没有处理，要处理的话将涉及到4个兄弟块，因为this块有MIN-1个路标，兄弟块有MIN个路标，向兄弟块挪一个路标显然是白费力气，
-                            //但是它们却也不一定能够合并，所以很麻烦
-                            if(siblingBlock.getInt(1, 4)==MIN_CHILDREN_FOR_INTERNAL) return null;
-
-                            //不能合并，通过从兄弟块转移一个路标来满足B+树路标最小限制
-                            (new InternalNode(parentBlock,true)).exchange(rearrangeAfter(siblingBlock,unionKey),block.blockOffset);//blockOffset请bufferManager务必设计好
-                            return null;
-
-                        }
-                    }
-
-                    //找不后续块，只能找前续兄弟块
-                    sibling=parentBlock.getInt(9+(parentKeyNum-1)*(myIndexInfo.columnLength+POINTERLENGTH), POINTERLENGTH);
-                    siblingBlock=bm.getBufferNode(filename, sibling);
-
-                    byte[] unionKey=parentBlock.getBytes(9+(parentKeyNum-1)*(myIndexInfo.columnLength+POINTERLENGTH)+POINTERLENGTH, myIndexInfo.columnLength);
-
-                    //能够合并
-                    if((siblingBlock.getInt(1, 4)+keyNum)<=MAX_CHILDREN_FOR_INTERNAL){
-                        return (new InternalNode(siblingBlock,true)).union(unionKey,block);
-                    }
-
-                    //没有考虑的情况
-                    if(siblingBlock.getInt(1, 4)==MIN_CHILDREN_FOR_INTERNAL) return null;
-
-                    //重排的情况
-                    (new InternalNode(parentBlock,true)).exchange(rearrangeBefore(siblingBlock,unionKey),sibling);
-                    return null;
-                }
-
-            }
-            return null;
-        }
-
     }
 
     //叶子节点类
@@ -600,13 +658,13 @@ class BPlusTree{
         LeafNode(BufferNode blk){
             block=blk;
 
-            block.data[0]='L';  //标识为叶子块
+            block.setByte(0, (byte)'L');  //标识为叶子块
             int i=5;
             block.setInt(1, 4, 0);//现在共有0个key值//现在共有0个key值
             for(;i<9;i++)
-                block.data[i]='$';  //没有父块
+                block.setByte(i, (byte)'$');  //没有父块
             for(;i<13;i++)
-                block.data[i]='&';  //最后一块叶子块的下一块叶子块标号，相当于null
+                block.setByte(i, (byte)'&');  //最后一块叶子块的下一块叶子块标号，相当于null
         }
 
         LeafNode(BufferNode blk,boolean t){
@@ -619,22 +677,24 @@ class BPlusTree{
 
             if(++keyNum>MAX_FOR_LEAF){  //分裂节点
                 boolean half=false;
-                BufferNode newBlock=bm.createBufferNode(filename, myIndexInfo.blockNum);
+                BufferNode newBlock=createBlock(myIndexInfo.blockNum);
 //                CatalogManager.addIndexBlockNum(myIndexInfo.indexName);
                 myIndexInfo.blockNum++;
                 LeafNode newNode=new LeafNode(newBlock);
 
-                for(int i=0;i<MIN_FOR_LEAF-1;i++){ //插入原块
+                //新键值小于原块第 MIN_FOR_LEAF-1 条(含)时插入原块. 原来只比较到第 MIN_FOR_LEAF-2 条, 落在第 MIN_FOR_LEAF-1 条之前的键值
+                //会被放进新块, 比原块最后一条还小, 之后按路标就找不到原块的最后一条了.
+                for(int i=0;i<MIN_FOR_LEAF;i++){ //插入原块
                     int pos=17+i*(myIndexInfo.columnLength+8);
-                    if(compareTo( insertKey,block.getBytes(pos,myIndexInfo.columnLength))< 0){
-                        System.arraycopy(block.data,  //把第MIN_FOR_LEAF-1条开始的记录copy到新block
+                    if(compareKeyAt(insertKey,block,pos)< 0){
+                        block.copyTo(  //把第MIN_FOR_LEAF-1条开始的记录copy到新block
                                 9+(MIN_FOR_LEAF-1)*(myIndexInfo.columnLength+8),
-                                newBlock.data,
+                                newBlock,
                                 9,
                                 POINTERLENGTH+(MAX_FOR_LEAF-MIN_FOR_LEAF+1)*(myIndexInfo.columnLength+8));
-                        System.arraycopy(block.data,  //给新插入条留出位置
+                        block.copyTo(  //给新插入条留出位置
                                 9+i*(myIndexInfo.columnLength+8),
-                                block.data,
+                                block,
                                 9+(i+1)*(myIndexInfo.columnLength+8),
                                 POINTERLENGTH+(MIN_FOR_LEAF-1-i)*(myIndexInfo.columnLength+8));
 
@@ -646,18 +706,18 @@ class BPlusTree{
                     }
                 }
                 if(!half){ //插入新块
-                    System.arraycopy(block.data,  //把第MIN_FOR_LEAF条开始的记录copy到新block
+                    block.copyTo(  //把第MIN_FOR_LEAF条开始的记录copy到新block
                             9+(MIN_FOR_LEAF)*(myIndexInfo.columnLength+8),
-                            newBlock.data,
+                            newBlock,
                             9,
                             POINTERLENGTH+(MAX_FOR_LEAF-MIN_FOR_LEAF)*(myIndexInfo.columnLength+8));
                     int i=0;
                     for(;i<MAX_FOR_LEAF-MIN_FOR_LEAF;i++){
                         int pos=17+i*(myIndexInfo.columnLength+8);
-                        if(compareTo(insertKey,newBlock.getBytes(pos,myIndexInfo.columnLength)) < 0){
-                            System.arraycopy(newBlock.data,  //给新插入条留出位置
+                        if(compareKeyAt(insertKey,newBlock,pos) < 0){
+                            newBlock.copyTo(  //给新插入条留出位置
                                     9+i*(myIndexInfo.columnLength+8),
-                                    newBlock.data,
+                                    newBlock,
                                     9+(i+1)*(myIndexInfo.columnLength+8),
                                     POINTERLENGTH+(MAX_FOR_LEAF-MIN_FOR_LEAF-i)*(myIndexInfo.columnLength+8));
 
@@ -667,9 +727,9 @@ class BPlusTree{
                         }
                     }
                     if(i==MAX_FOR_LEAF-MIN_FOR_LEAF){
-                        System.arraycopy(newBlock.data,  //给新插入条留出位置
+                        newBlock.copyTo(  //给新插入条留出位置
                                 9+i*(myIndexInfo.columnLength+8),
-                                newBlock.data,
+                                newBlock,
                                 9+(i+1)*(myIndexInfo.columnLength+8),
                                 POINTERLENGTH+(MAX_FOR_LEAF-MIN_FOR_LEAF-i)*(myIndexInfo.columnLength+8));
 
@@ -687,9 +747,9 @@ class BPlusTree{
                 int parentBlockNum;
                 BufferNode ParentBlock;
                 InternalNode ParentNode;
-                if(block.data[5]=='$'){  //没有父节点，则创建父节点
+                if(block.getByte(5)=='$'){  //没有父节点，则创建父节点
                     parentBlockNum=myIndexInfo.blockNum;
-                    ParentBlock=bm.createBufferNode(filename, parentBlockNum);
+                    ParentBlock=createBlock(parentBlockNum);
 
 //                    CatalogManager.addIndexBlockNum(myIndexInfo.indexName);
                     myIndexInfo.blockNum++;
@@ -701,7 +761,7 @@ class BPlusTree{
                 else{
                     parentBlockNum=block.getInt(5,POINTERLENGTH);
                     newBlock.setInt(5, POINTERLENGTH, parentBlockNum); //新节点的父亲也就是旧节点的父亲
-                    ParentBlock=bm.getBufferNode(filename, parentBlockNum);
+                    ParentBlock=getBlock(parentBlockNum);
                     ParentNode=new InternalNode(ParentBlock,true);
                 }
 
@@ -713,9 +773,9 @@ class BPlusTree{
 
             else{  //不需要分裂节点时
                 if(keyNum-1==0){
-                    System.arraycopy(block.data,
+                    block.copyTo(
                             9,
-                            block.data,
+                            block,
                             9+(myIndexInfo.columnLength+8),
                             POINTERLENGTH);
 
@@ -728,15 +788,15 @@ class BPlusTree{
                 for(i=0;i<keyNum;i++){
                     int pos=17+i*(myIndexInfo.columnLength+8);
 
-                    if(compareTo(insertKey,block.getBytes(pos,myIndexInfo.columnLength))==0){ //已有键值则更新
+                    if(compareKeyAt(insertKey,block,pos)==0){ //已有键值则更新
                         block.setKeyData(9 + i * (myIndexInfo.columnLength + 8), insertKey, blockOffset, offset);
                         return null;
                     }
 
-                    if(compareTo(insertKey,block.getBytes(pos,myIndexInfo.columnLength)) < 0){ //找到插入的位置
-                        System.arraycopy(block.data,
+                    if(compareKeyAt(insertKey,block,pos) < 0){ //找到插入的位置
+                        block.copyTo(
                                 9+i*(myIndexInfo.columnLength+8),
-                                block.data,
+                                block,
                                 9+(i+1)*(myIndexInfo.columnLength+8),
                                 POINTERLENGTH+(keyNum-1-i)*(myIndexInfo.columnLength+8));
 
@@ -747,9 +807,9 @@ class BPlusTree{
                     }
                 }
                 if(i==keyNum){
-                    System.arraycopy(block.data,
+                    block.copyTo(
                             9+(i-1)*(myIndexInfo.columnLength+8),
-                            block.data,
+                            block,
                             9+i*(myIndexInfo.columnLength+8),
                             POINTERLENGTH);
 
@@ -787,12 +847,12 @@ class BPlusTree{
 
                 middle = (start + end) / 2;
 
-                byte[] middleKey = block.getBytes(17+middle*(myIndexInfo.columnLength+8), myIndexInfo.columnLength);
-                if (compareTo(key,middleKey) == 0){
+                int c = compareKeyAt(key, block, 17+middle*(myIndexInfo.columnLength+8));
+                if (c == 0){
                     break;
                 }
 
-                if (compareTo(key,middleKey) < 0) {
+                if (c < 0) {
                     end = middle-1;
                 } else {
                     start = middle+1;
@@ -801,7 +861,6 @@ class BPlusTree{
             }
 
             int pos=9+middle*(myIndexInfo.columnLength+8);
-            byte[] middleKey = block.getBytes(8+pos, myIndexInfo.columnLength);
 
             //将找到的位置上的表文件偏移信息存入off中，返回给上级调用
             offsetInfo off=new offsetInfo();
@@ -809,87 +868,7 @@ class BPlusTree{
             off.offsetInfile=block.getInt(pos, 4);
             off.offsetInBlock=block.getInt(pos+4, 4);
 
-            return compareTo(middleKey,key) == 0 ? off : null;   //再次确认有没有找到这个索引键值，没有则返回null
-        }
-
-        //以叶子节点为单位的块合并
-        BufferNode union(BufferNode afterBlock){
-            int keyNum = block.getInt(1, 4);
-            int afterKeyNum= afterBlock.getInt(1, 4);
-
-            //将after块的内容复制到this块的后面
-            System.arraycopy(afterBlock.data,9,block.data,9+keyNum*(myIndexInfo.columnLength+8),POINTERLENGTH+afterKeyNum*(myIndexInfo.columnLength+8));
-
-            //更新索引数量
-            keyNum+=afterKeyNum;
-            block.setInt(1, 4, keyNum);
-
-            //请bufferManager销毁after块
-            //afterBlock.isvalid=false;
-            myIndexInfo.blockNum--;
-
-            //在父节点中删除这个被废弃的after块的信息(标号及它前面的路标)
-            int parentBlockNum=block.getInt(5, POINTERLENGTH);
-            BufferNode parentBlock=bm.getBufferNode(filename, parentBlockNum);
-
-            return (new InternalNode(parentBlock,true)).delete(afterBlock);
-
-        }
-
-        //从兄弟节点挪来一条索引进行重排
-        byte[] rearrangeAfter(BufferNode siblingBlock){ //兄弟节点在其后
-            int siblingKeyNum=siblingBlock.getInt(1, 4);
-            int keyNum = block.getInt(1, 4);
-
-            //要挪过来的索引信息
-            int blockOffset=siblingBlock.getInt(9, 4);
-            int offset=siblingBlock.getInt(13, 4);
-            byte[] Key=siblingBlock.getBytes(17, myIndexInfo.columnLength);
-
-            //更新兄弟块的内容
-            siblingKeyNum--;
-            siblingBlock.setInt(1, 4, siblingKeyNum);
-            System.arraycopy(siblingBlock.data, 9+8+myIndexInfo.columnLength, siblingBlock.data, 9, POINTERLENGTH+siblingKeyNum*(8+myIndexInfo.columnLength));
-
-            //this块和兄弟块之间的新路标
-            byte[] changeKey=siblingBlock.getBytes(17, myIndexInfo.columnLength);
-
-            //添加挪来的索引
-            block.setKeyData(9 + keyNum * (myIndexInfo.columnLength + 8), Key, blockOffset, offset);
-            keyNum++;
-            block.setInt(1, 4, keyNum);
-            //注意不要漏了链表信息(下一块的标号)
-            block.setInt(9+keyNum*(myIndexInfo.columnLength+8), POINTERLENGTH, siblingBlock.blockOffset);
-
-            return changeKey;
-
-        }
-
-        byte[] rearrangeBefore(BufferNode siblingBlock){  //兄弟节点在其前
-            int siblingKeyNum=siblingBlock.getInt(1, 4);
-            int keyNum = block.getInt(1, 4);
-
-            siblingKeyNum--;
-            siblingBlock.setInt(1, 4, siblingKeyNum);
-
-            //要挪来的索引信息
-            int blockOffset=siblingBlock.getInt(9+siblingKeyNum*(myIndexInfo.columnLength+8), 4);
-            int offset=siblingBlock.getInt(13+siblingKeyNum*(myIndexInfo.columnLength+8), 4);
-            byte[] Key=siblingBlock.getBytes(17+siblingKeyNum*(myIndexInfo.columnLength+8), myIndexInfo.columnLength);
-
-            //保存好链表信息
-            siblingBlock.setInt(9+siblingKeyNum*(myIndexInfo.columnLength+8), POINTERLENGTH, block.blockOffset);
-
-            //挪出新索引位置
-            System.arraycopy(block.data, 9, block.data, 9+8+myIndexInfo.columnLength, POINTERLENGTH+keyNum*(8+myIndexInfo.columnLength));
-            block.setKeyData(9, Key, blockOffset, offset); //插入新索引
-            keyNum++;
-            block.setInt(1, 4, keyNum);
-
-            //需要父块的更新成的新路标
-            byte[] changeKey=block.getBytes(17, myIndexInfo.columnLength);
-
-            return changeKey;
+            return compareKeyAt(key, block, 8+pos) == 0 ? off : null;   //再次确认有没有找到这个索引键值，没有则返回null
         }
 
         //以叶子节点为单位的索引删除
@@ -900,70 +879,23 @@ class BPlusTree{
             for(int i=0;i<keyNum;i++){
                 int pos=17+i*(myIndexInfo.columnLength+8);
 
-                if(compareTo(deleteKey,block.getBytes(pos,myIndexInfo.columnLength))<0){ //没找到索引键值
+                if(compareKeyAt(deleteKey,block,pos)<0){ //没找到索引键值
                     System.out.println("没有该索引键值");
                     return null;
                 }
 
-                if(compareTo(deleteKey,block.getBytes(pos,myIndexInfo.columnLength)) == 0){ //找到对应的键值
+                if(compareKeyAt(deleteKey,block,pos) == 0){ //找到对应的键值
 
-                    System.arraycopy(block.data, //移除这条索引
+                    block.copyTo(  //移除这条索引
                             9+(i+1)*(myIndexInfo.columnLength+8),
-                            block.data,
+                            block,
                             9+i*(myIndexInfo.columnLength+8),
                             POINTERLENGTH+(keyNum-1-i)*(myIndexInfo.columnLength+8));
                     keyNum--;
                     block.setInt(1, 4, keyNum);
 
-                    if(keyNum >=MIN_FOR_LEAF) return null; //仍然满足数量要求
-
-                    if(block.data[5]=='$') return null;  //没有父块，本身为根
-
-                    boolean lastFlag=false;
-                    if(block.data[9+keyNum*(myIndexInfo.columnLength+8)]=='&') lastFlag=true; //叶子块链表的最后一块
-
-                    int sibling=block.getInt(9+keyNum*(myIndexInfo.columnLength+8), POINTERLENGTH);
-                    BufferNode siblingBlock=bm.getBufferNode(filename, sibling);
-                    int parentBlockNum=block.getInt(5, POINTERLENGTH);
-
-                    if(lastFlag || siblingBlock==null || siblingBlock.getInt(5, POINTERLENGTH)!=parentBlockNum/*虽然有后续块但不是同一个父亲的兄弟块*/){  //没有找到后续兄弟节点
-                        //通过父块找前续兄弟块
-                        BufferNode parentBlock=bm.getBufferNode(filename, parentBlockNum);
-                        int j=0;
-                        int parentKeyNum=parentBlock.getInt(1, 4);
-                        for(;j<parentKeyNum;j++){
-                            int ppos=9+POINTERLENGTH+j*(myIndexInfo.columnLength+POINTERLENGTH);
-                            if(compareTo(deleteKey,parentBlock.getBytes(ppos, myIndexInfo.columnLength))<0){
-                                sibling=parentBlock.getInt(ppos-2*POINTERLENGTH-myIndexInfo.columnLength, POINTERLENGTH);
-                                siblingBlock=bm.getBufferNode(filename, sibling);
-                                break;
-                            }
-                        }
-
-                        //可以合并
-                        if((siblingBlock.getInt(1, 4)+keyNum)<=MAX_FOR_LEAF){
-                            return (new LeafNode(siblingBlock,true)).union(block);
-                        }
-
-                        //两个节点原来都是MIN_FOR_LEAF，delete一个以后的情况没考虑，这个时候会涉及三个节点
-                        if(siblingBlock.getInt(1, 4)==MIN_FOR_LEAF) return null;
-
-                        //重排
-                        (new InternalNode(parentBlock,true)).exchange(rearrangeBefore(siblingBlock),sibling);
-                        return null;
-                    }
-
-                    //合并
-                    if((siblingBlock.getInt(1, 4)+keyNum)<=MAX_FOR_LEAF){
-                        return this.union(siblingBlock);
-                    }
-
-                    //没考虑的情况
-                    if(siblingBlock.getInt(1, 4)==MIN_FOR_LEAF) return null;
-
-                    //重排
-                    BufferNode parentBlock=bm.getBufferNode(filename, parentBlockNum);
-                    (new InternalNode(parentBlock,true)).exchange(rearrangeAfter(siblingBlock),block.blockOffset);//blockOffset请bufferManager务必设计好
+                    //只删除键值, 不再合并或重排叶子. 原来的合并/重排没有更新被移动子块的父指针,
+                    //删除较多时会让树丢掉键值; 叶子少于 MIN_FOR_LEAF 个键值甚至为空时, 查找、插入和范围扫描都能正常处理.
                     return null;
                 }
             }
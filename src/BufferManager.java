@@ -1,188 +1,751 @@
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.System.*;
 
 /**
  * Created by gyuu on 15/11/1.
+ *
+ * 线程安全: 多个线程可以共享同一个 BufferManager.
+ * - 页表是 ConcurrentHashMap, 命中时不加锁, 找到块后用 CAS 钉住它, 再确认它仍是要找的块.
+ * - 同一个块的未命中由按 (文件名, 块号) 分段的锁串行处理, 不同块的读入可以并行.
+ * - 申请空闲块/选择替换块/登记块持有 poolLock; 替换策略的所有操作都在替换策略对象上同步.
+ *   命中时不加任何锁, 只设置块的引用位, 替换策略选择换出的块时再处理引用位.
+ * - 换出的脏块在 poolLock 之外写回, 申请块的其他线程不必等待磁盘 I/O.
+ * - 被替换的块先用 CAS 把钉住计数从 0 改为 -1 (占用), 被钉住的块不会被替换, 占用中的块也不能被钉住.
+ * - 块内容本身不加锁. 修改块的线程必须钉住它; 换出时写回的块已被占用, 没有人能钉住它;
+ *   检查点和 WriteAllToFile 写回被钉住的块时, 语句都在 bm 上串行执行, 不会同时修改这些块.
+ * 不钉住块的 getBufferNode 等方法只适合单线程使用, 多线程时应使用 pinXXX, 用完后 unpin.
  */
 public class BufferManager {
     public static final byte EMPTY_FLAG = '@'; // 每条记录开头使用 '@' 表示是否为空.
-    public static final int BUFFER_SIZE = 10000; // 现在是 100.
-    public static final int BLOCK_SIZE = BufferNode.BLOCK_SIZE;
-    public BufferNode[] buffer = new BufferNode[BUFFER_SIZE];
+    public static final int DEFAULT_BUFFER_SIZE = 10000; // 默认的缓冲块数.
+    public static final int DEFAULT_BLOCK_SIZE = 4096;   // 默认的块大小(字节).
+    public static final int MIN_BLOCK_SIZE = 4096;
+    public static final int MAX_BLOCK_SIZE = 65536; // 记录管理用 2 字节存块内的记录序号和记录数, 块不能更大.
+    public static final int MAX_OPEN_FILES = 64; // 同时保持打开的表/索引文件数上限.
+    public static final int READ_AHEAD_BLOCKS = 16; // 顺序访问时一次预读的块数.
+    private static final int LOCK_STRIPES = 64; // 未命中时使用的分段锁个数.
+    private static final int MAX_WRITE_RUN = 256; // 一次聚集写最多写回的块数.
+    private static final int EMPTY_BLOCK_RETRIES = 1000; // 没有可替换的块时最多等待的毫秒数.
+    // 缓冲块数和块大小, 启动时确定(见 CatalogManager), 之后不变.
+    // 表和索引文件按块大小划分, 记录的布局和 B+ 树的扇出都由块大小决定.
+    public final int bufferSize;
+    public final int blockSize;
+    public BufferNode[] buffer;
+    // 写回时脏块的顺序: 先按文件名, 再按块号.
+    private static final Comparator<BufferNode> BLOCK_ORDER = new Comparator<BufferNode>() {
+        public int compare(BufferNode a, BufferNode b) {
+            int c = a.fileName.compareTo(b.fileName);
+            return c != 0 ? c : Integer.compare(a.blockOffset, b.blockOffset);
+        }
+    };
+    // 页表: 文件名 -> (块偏移 -> 缓冲块), 命中时只需两次哈希查找, 不必扫描整个缓冲区.
+    // 只在持有 poolLock 时修改.
+    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, BufferNode>> pageTable = new ConcurrentHashMap<String, ConcurrentHashMap<Integer, BufferNode>>();
+    // 保护空闲块队列、页表的修改和块的替换.
+    private final Object poolLock = new Object();
+    // 未命中时按 (文件名, 块号) 选一把锁, 保证同一块不会被两个线程同时读入.
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+    // 空闲块(isValid 为 false)的队列, 申请新块时优先使用.
+    private ArrayDeque<BufferNode> freeList = new ArrayDeque<BufferNode>();
+    // 替换策略, 可用 -Dminisql.replacer=2q|clock|lru 选择, 默认为抗扫描的 2q.
+    // 替换策略本身不是线程安全的, 所有调用都在它上面同步.
+    private Replacer replacer;
+    // 文件句柄缓存: 每个表/索引文件只打开一次, 按访问顺序排列, 超过 MAX_OPEN_FILES 时移出最久未用的.
+    // 移出的句柄如果还有线程在用, 由最后一个使用者关闭(见 FileHandle). 在 openFiles 上同步.
+    private LinkedHashMap<String, FileHandle> openFiles = new LinkedHashMap<String, FileHandle>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, FileHandle> eldest) {
+            if (size() > MAX_OPEN_FILES) {
+                eldest.getValue().retire();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // 顺序访问检测: 每个文件最近一次从文件读入的最后一个块号.
+    // 下一次未命中的块正好是它的下一块时, 认为是顺序访问, 开始预读.
+    private ConcurrentHashMap<String, Integer> lastReadBlock = new ConcurrentHashMap<String, Integer>();
+    // 通过 beginScan 声明正在顺序扫描的文件 -> 正在扫描它的次数. 扫描中第一次未命中就开始预读.
+    private ConcurrentHashMap<String, Integer> scanningFiles = new ConcurrentHashMap<String, Integer>();
+
+    // 只读访问时把表/索引文件映射到内存(FileChannel.map), 直接从映射中读块, 不复制到缓冲区.
+    // 可用 -Dminisql.buffer.mmap=true 打开. 文件名 -> 只读映射.
+    private boolean mmapRead;
+    private ConcurrentHashMap<String, MappedByteBuffer> mappings = new ConcurrentHashMap<String, MappedByteBuffer>();
+
+    // 脏块(isWritten)的个数, 以及块由干净变脏的总次数, 由 BufferNode.setWritten 维护. 检查点线程不加锁地读它们.
+    // 脏块在检查点之前可能已被替换时写回, 所以只看脏块数不能判断上次检查点以来有没有修改, 还要看变脏的次数.
+    private final AtomicInteger dirtyBlocks = new AtomicInteger(0);
+    private final AtomicLong dirtiedBlocks = new AtomicLong(0);
+
+    // 命中率、读写次数和延迟等统计, 用 show buffer stats 或 JMX 查看.
+    private final BufferStats stats = new BufferStats(this);
 
     public BufferManager(){
-        for (int i =0; i<BUFFER_SIZE; i++)
-            buffer[i] = new BufferNode();
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_BLOCK_SIZE);
     }
 
-    public void WriteAllToFile() throws IOException {
-        for (int i=0; i<BUFFER_SIZE; i++) {
-            flashBack(i);
+    // 使用给定的缓冲块数和块大小, 其他选项从系统属性读取.
+    public BufferManager(int bufferSize, int blockSize){
+        this(bufferSize, blockSize, System.getProperty("minisql.replacer", "2q"),
+                Boolean.parseBoolean(System.getProperty("minisql.buffer.offHeap", "false")));
+        mmapRead = Boolean.parseBoolean(System.getProperty("minisql.buffer.mmap", "false"));
+    }
+
+    // offHeap 为 true 时, 所有块的数据放在一大块直接内存(堆外)中, 每个 BufferNode 是其中的一段切片.
+    // 这样缓冲区不占用 Java 堆, GC 不需要扫描和复制它, 缓冲区也可以开得很大.
+    public BufferManager(int bufferSize, int blockSize, String replacerName, boolean offHeap){
+        checkBlockSize(blockSize);
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        this.bufferSize = bufferSize;
+        this.blockSize = blockSize;
+        buffer = new BufferNode[bufferSize];
+        // 堆外缓冲区每段直接内存容纳的块数. 单个 ByteBuffer 不能超过 2GB, 所以大缓冲区分段分配.
+        int blocksPerSegment = (1 << 30) / blockSize;
+        ByteBuffer segment = null;
+        for (int i =0; i<bufferSize; i++) {
+            if (offHeap) {
+                int indexInSegment = i % blocksPerSegment;
+                if (indexInSegment == 0)
+                    segment = ByteBuffer.allocateDirect(Math.min(bufferSize - i, blocksPerSegment) * blockSize);
+                ByteBuffer slice = segment.duplicate();
+                slice.position(indexInSegment * blockSize);
+                slice.limit((indexInSegment + 1) * blockSize);
+                buffer[i] = new BufferNode(slice.slice(), dirtyBlocks, dirtiedBlocks);
+            }
+            else
+                buffer[i] = new BufferNode(ByteBuffer.allocate(blockSize), dirtyBlocks, dirtiedBlocks);
+            buffer[i].bufferIndex = i;
+            freeList.add(buffer[i]);
         }
+        for (int i=0; i<LOCK_STRIPES; i++)
+            stripes[i] = new Object();
+        replacer = Replacer.create(replacerName, buffer);
     }
 
-    // 将缓冲区中指定序号的 BufferNode 写回文件, 并将该块清空.
-    private void flashBack(int bufferIndex) throws IOException {
-        if(!buffer[bufferIndex].isWritten || !buffer[bufferIndex].isValid){
-            return;
+    // 块大小必须是 MIN_BLOCK_SIZE 到 MAX_BLOCK_SIZE 之间的 2 的幂, 即 4K/8K/16K/32K/64K.
+    public static boolean isValidBlockSize(int blockSize) {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE && Integer.bitCount(blockSize) == 1;
+    }
+
+    public static void checkBlockSize(int blockSize) {
+        if (!isValidBlockSize(blockSize))
+            throw new IllegalArgumentException("Unsupported block size: " + blockSize);
+    }
+
+    // 把所有被修改过(isWritten)的块写回文件. 写回后块仍留在缓冲区中, 只是不再是脏块.
+    // 只读过的块不会被写回. 返回写回的块数.
+    // 正在被替换的块跳过, 替换它的线程会负责写回.
+    // 脏块按 (文件名, 块号) 排序, 同一文件中块号连续的一段用一次聚集写(gathering write)写回,
+    // 批量插入后的写回基本上是顺序写.
+    public int WriteAllToFile() throws IOException {
+        ArrayList<BufferNode> dirty = new ArrayList<BufferNode>();
+        for (int i=0; i<bufferSize; i++) {
+            BufferNode node = buffer[i];
+            if (!node.isWritten() || !node.tryPin())
+                continue;
+            if (node.isValid && node.isWritten())
+                dirty.add(node);
+            else
+                node.unpin();
+        }
+        dirty.sort(BLOCK_ORDER);
+
+        int flushed = 0;
+        try {
+            int runStart = 0;
+            for (int i=1; i<=dirty.size(); i++) {
+                if (i == dirty.size() || i - runStart == MAX_WRITE_RUN
+                        || !dirty.get(i).fileName.equals(dirty.get(runStart).fileName)
+                        || dirty.get(i).blockOffset != dirty.get(i-1).blockOffset + 1) {
+                    flushed += writeRun(dirty.subList(runStart, i));
+                    runStart = i;
+                }
+            }
+        }
+        finally {
+            for (BufferNode node : dirty)
+                node.unpin();
+        }
+        return flushed;
+    }
+
+    // 把同一文件中块号连续的一段脏块(已钉住)用一次聚集写写回. 返回写回的块数.
+    private int writeRun(List<BufferNode> run) throws IOException {
+        if (run.size() == 1)
+            return flashBack(run.get(0)) ? 1 : 0;
+        String fileName = run.get(0).fileName;
+        ByteBuffer[] srcs = new ByteBuffer[run.size()];
+        long start = System.nanoTime();
+        for (int i=0; i<run.size(); i++) {
+            run.get(i).setWritten(false); // 先清除标记再写, 理由同 flashBack
+            srcs[i] = run.get(i).dataView();
+        }
+        try {
+            FileHandle handle = acquireChannel(fileName, true);
+            try {
+                FileChannel fout = handle.channel;
+                long remaining = (long) run.size() * blockSize;
+                // 聚集写使用通道的当前位置, 和预读一样要在通道上同步.
+                synchronized (fout) {
+                    fout.position((long) run.get(0).blockOffset * blockSize);
+                    while (remaining > 0)
+                        remaining -= fout.write(srcs);
+                }
+            }
+            finally {
+                releaseChannel(handle);
+            }
+        }
+        catch (IOException e) {
+            for (BufferNode node : run)
+                node.setWritten(true); // 写失败, 恢复修改标记, 这些块不能当作干净块被替换或跳过
+            throw e;
+        }
+        stats.recordWrite(fileName, run.size(), (long) run.size() * blockSize, System.nanoTime() - start);
+        return run.size();
+    }
+
+    public BufferStats getStats() {
+        return stats;
+    }
+
+    // 缓冲区中登记在页表里的块数.
+    public int getResidentBlocks() {
+        int resident = 0;
+        for (Map<Integer, BufferNode> blocks : pageTable.values())
+            resident += blocks.size();
+        return resident;
+    }
+
+    // 脏块数. 只读一个计数器, 代价与缓冲区大小无关, 不需要加锁.
+    public int getDirtyBlocks() {
+        return dirtyBlocks.get();
+    }
+
+    // 块由干净变脏的总次数, 只增不减. 两次读到的值不同, 说明期间有块被修改过.
+    public long getDirtiedBlocks() {
+        return dirtiedBlocks.get();
+    }
+
+    // 脏块占整个缓冲区的比例, 检查点线程据此决定是否提前写回.
+    public double getDirtyRatio() {
+        return (double) dirtyBlocks.get() / bufferSize;
+    }
+
+    // 将 node 写回文件(如果它被修改过), 并清除修改标记. 返回该块是否被写回.
+    // 调用者要钉住或占用 node, 保证写回过程中它不会变成别的块.
+    // 先清除标记再写: 写的过程中别的线程修改了块, 标记会重新被置上, 下次再写回. 写失败时恢复标记.
+    private boolean flashBack(BufferNode node) throws IOException {
+        if(!node.isWritten() || !node.isValid){
+            return false;
+        }
+        node.setWritten(false);
+        long start = System.nanoTime();
+        try {
+            FileHandle handle = acquireChannel(node.fileName, true);
+            try {
+                ByteBuffer src = node.dataView();
+                long position = (long) node.blockOffset * blockSize;
+                while (src.hasRemaining())
+                    position += handle.channel.write(src, position);
+            }
+            finally {
+                releaseChannel(handle);
+            }
+        }
+        catch (IOException e) {
+            node.setWritten(true); // 写失败, 恢复修改标记, 下次再写回
+            throw e;
+        }
+        stats.recordWrite(node.fileName, 1, blockSize, System.nanoTime() - start);
+        return true;
+    }
+
+    // 从句柄缓存中取出文件对应的句柄, 没有则打开并放入缓存. create 为 false 时文件必须已经存在.
+    // 返回的句柄在 releaseChannel 之前不会被关闭, 即使它在此期间被移出了缓存.
+    private FileHandle acquireChannel(String fileName, boolean create) throws IOException {
+        synchronized (openFiles) {
+            FileHandle handle = openFiles.get(fileName);
+            if (handle == null) {
+                FileChannel channel;
+                if (create)
+                    channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                else
+                    channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+                handle = new FileHandle(channel);
+                openFiles.put(fileName, handle);
+            }
+            handle.users++;
+            return handle;
+        }
+    }
+
+    private void releaseChannel(FileHandle handle) {
+        synchronized (openFiles) {
+            handle.users--;
+            handle.closeIfUnused();
+        }
+    }
+
+    // 关闭文件句柄. 删除表或索引文件前要调用 (setInvalid 会调用).
+    // 正在读写该文件的线程用完后才真正关闭.
+    public void closeFile(String fileName) {
+        stats.forgetFile(fileName);
+        mappings.remove(fileName);
+        lastReadBlock.remove(fileName);
+        synchronized (openFiles) {
+            FileHandle handle = openFiles.remove(fileName);
+            if (handle != null)
+                handle.retire();
         }
-        String filename = buffer[bufferIndex].fileName;
-        RandomAccessFile fout = new RandomAccessFile(filename, "rw");
-        fout.seek(buffer[bufferIndex].blockOffset * BLOCK_SIZE);
-        fout.write(buffer[bufferIndex].data);
-        buffer[bufferIndex].initialize();
-        fout.close();
     }
 
     // 根据文件名和块偏移, 寻找 buffer 中该块, 如果存在,返回该块,否则返回 null。
+    // 返回的块没有被钉住, 多线程时可能随时被替换.
     public BufferNode getIfIsInBuffer(String fileName, int blockOffset) {
-        for (int bufferIndex=0; bufferIndex<BUFFER_SIZE; bufferIndex++)
-            if (buffer[bufferIndex].fileName.equals(fileName) && buffer[bufferIndex].blockOffset == blockOffset)
-                return buffer[bufferIndex];
-        return null;
+        ConcurrentHashMap<Integer, BufferNode> blocks = pageTable.get(fileName);
+        if (blocks == null)
+            return null;
+        return blocks.get(blockOffset);
+    }
+
+    // 把 node 登记到页表中 (fileName, blockOffset) 的位置, 同时撤销它原来的登记.
+    // 所有改变 node.fileName / node.blockOffset 的地方都要经过这里, 否则页表会和缓冲区不一致.
+    // 调用者需持有 poolLock.
+    private void bindBlock(BufferNode node, String fileName, int blockOffset) {
+        unbindBlock(node);
+        node.fileName = fileName;
+        node.blockOffset = blockOffset;
+        ConcurrentHashMap<Integer, BufferNode> blocks = pageTable.get(fileName);
+        if (blocks == null) {
+            blocks = new ConcurrentHashMap<Integer, BufferNode>();
+            pageTable.put(fileName, blocks);
+        }
+        blocks.put(blockOffset, node);
+    }
+
+    // 从页表中移除 node 的登记(如果页表中该位置登记的确实是它). 调用者需持有 poolLock.
+    private void unbindBlock(BufferNode node) {
+        ConcurrentHashMap<Integer, BufferNode> blocks = pageTable.get(node.fileName);
+        if (blocks != null && blocks.get(node.blockOffset) == node) {
+            blocks.remove(node.blockOffset);
+            if (blocks.isEmpty())
+                pageTable.remove(node.fileName);
+        }
+    }
+
+    private Object stripeOf(String fileName, int blockOffset) {
+        return stripes[((fileName.hashCode() * 31 + blockOffset) & 0x7fffffff) % LOCK_STRIPES];
     }
 
-    // 根据文件名和块偏移, 返回该块.
+    // 根据文件名和块偏移, 返回该块. 返回的块没有被钉住, 只适合单线程使用.
     public BufferNode getBufferNode(String fileName, int blockOffset) {
-        BufferNode node = getIfIsInBuffer(fileName, blockOffset);
-        if (node == null) {
-            try {
-                node = getEmptyBufferNodeExcept(fileName);
-                readBlock(fileName, blockOffset, node);
+        BufferNode node = pinBufferNode(fileName, blockOffset);
+        node.unpin();
+        return node;
+    }
+
+    // 根据文件名和块偏移, 返回该块并钉住它. 用完后调用者要 unpin.
+    // 查找和钉住是原子的: 返回时块一定是要找的块, 且在 unpin 之前不会被替换.
+    public BufferNode pinBufferNode(String fileName, int blockOffset) {
+        while (true) {
+            BufferNode node = getIfIsInBuffer(fileName, blockOffset);
+            if (node != null) {
+                if (node.tryPin()) {
+                    // 查页表和钉住之间块可能已被替换成别的块, 钉住后再确认一次.
+                    if (node.isValid && node.blockOffset == blockOffset && fileName.equals(node.fileName)) {
+                        stats.recordHit(fileName);
+                        // 扫描中的命中不置引用位, 不会让扫描过的块留在缓冲区里.
+                        if (!scanningFiles.containsKey(fileName))
+                            node.reference();
+                        return node;
+                    }
+                    node.unpin();
+                }
+                Thread.yield(); // 块正在被替换, 稍后重新查找
+                continue;
             }
-            catch (IOException e){
-                System.out.println("BufferManager: Requested file not found.");
-                exit(0);
+            synchronized (stripeOf(fileName, blockOffset)) {
+                if (getIfIsInBuffer(fileName, blockOffset) != null)
+                    continue; // 已被别的线程读入
+                stats.recordMiss(fileName);
+                try {
+                    Integer last = lastReadBlock.get(fileName);
+                    boolean sequential = scanningFiles.containsKey(fileName) || (last != null && last == blockOffset - 1);
+                    if (!sequential || readAhead(fileName, blockOffset) == 0) {
+                        loadBlock(getEmptyBufferNode(), fileName, blockOffset);
+                        lastReadBlock.put(fileName, blockOffset);
+                    }
+                }
+                catch (IOException e){
+                    System.out.println("BufferManager: Requested file not found.");
+                    exit(0);
+                }
             }
         }
+    }
+
+    // 只读地获取一个块, 调用者不能修改返回的块. 返回的块没有被钉住, 只适合单线程使用.
+    public BufferNode getBufferNodeForRead(String fileName, int blockOffset) {
+        BufferNode node = pinBufferNodeForRead(fileName, blockOffset);
+        node.unpin();
         return node;
     }
 
-    // 根据文件名和块偏移, 申请一个块并将其初始化.
-    // 这里我没有实现加锁功能...粗暴地限定了相同文件名的块无法被替换出去.
-    // 加锁功能在 IndexManager 中节点的分裂时用到了.
-    // 节点分裂时要在文件中增加一个块作为新节点.把旧节点中一半的数据复制到新节点中.
-    // 如果没有加锁与文件名相同替换限制, 可能旧节点就被替换出去.
-    // 此时旧节点指向的内存地址与新节点指向的内存地址相同. 指向 buffer 中一个被写回文件且被清空的 BufferNode.
-    // 我们就无法实现从旧节点向新节点拷贝信息的行为.
-    // 将缓冲区开大一些可以减少这种事件发生的概率, 但是不能完全防止, 必须有加锁功能才可以.
+    // 只读地获取一个块并钉住它, 调用者不能修改返回的块, 用完后要 unpin.
+    // 开启 mmap 时, 如果该块不在缓冲区中, 直接返回文件映射上的一个视图(不占用缓冲区, 也不复制数据);
+    // 块在缓冲区中(可能比文件中的新), 或者还没有写入文件时, 和 pinBufferNode 一样从缓冲区返回.
+    public BufferNode pinBufferNodeForRead(String fileName, int blockOffset) {
+        return pinBufferNodeForRead(fileName, blockOffset, null);
+    }
+
+    // 同上. previous 是同一个调用者上一次得到(并已经 unpin)的块, 可以为 null:
+    // 如果它是 mmap 视图, 就让它改为指向这一块, 顺序扫描时整个扫描只用一个视图对象.
+    // 调用者之后不能再使用 previous 原来的内容.
+    public BufferNode pinBufferNodeForRead(String fileName, int blockOffset, BufferNode previous) {
+        if (!mmapRead || getIfIsInBuffer(fileName, blockOffset) != null)
+            return pinBufferNode(fileName, blockOffset);
+        try {
+            MappedByteBuffer mapping = getMapping(fileName, blockOffset);
+            if (mapping != null) {
+                BufferNode node = previous != null && previous.isMappedView() && !previous.isPinned()
+                        ? previous : BufferNode.mappedView();
+                node.remap(mapping, fileName, blockOffset, blockSize);
+                node.pin();
+                stats.recordMappedRead(fileName);
+                return node;
+            }
+        }
+        catch (IOException e) {
+            // 映射失败时退回到普通的读取方式.
+        }
+        return pinBufferNode(fileName, blockOffset);
+    }
+
+    // 返回覆盖了指定块的只读映射. 文件变长后原来的映射不包含新块, 此时重新映射.
+    // 块还不在文件中, 或超出单个映射 2GB 的上限时返回 null.
+    private MappedByteBuffer getMapping(String fileName, int blockOffset) throws IOException {
+        long end = (long) (blockOffset + 1) * blockSize;
+        MappedByteBuffer mapping = mappings.get(fileName);
+        if (mapping == null || mapping.capacity() < end) {
+            // 映射建立后不依赖通道, 通道关闭后映射仍然有效.
+            FileHandle handle = acquireChannel(fileName, false);
+            try {
+                long size = Math.min(handle.channel.size(), Integer.MAX_VALUE / blockSize * blockSize);
+                if (size < end)
+                    return null;
+                mapping = handle.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            finally {
+                releaseChannel(handle);
+            }
+            mappings.put(fileName, mapping);
+        }
+        return mapping;
+    }
+
+    // 声明即将按块号顺序扫描整个文件, 扫描期间每次未命中都会预读后面的块.
+    // 可以有多个线程同时扫描同一个文件, 每次 beginScan 都要有对应的 endScan.
+    public void beginScan(String fileName) {
+        scanningFiles.merge(fileName, 1, Integer::sum);
+    }
+
+    public void endScan(String fileName) {
+        scanningFiles.computeIfPresent(fileName, (f, n) -> n > 1 ? n - 1 : null);
+    }
+
+    // 从 fromBlock 开始, 把文件中接下来最多 READ_AHEAD_BLOCKS 个连续的、不在缓冲区中的块
+    // 用一次分散读(scattering read)直接读入各个缓冲块. 返回读入的块数.
+    private int readAhead(String fileName, int fromBlock) throws IOException {
+        FileHandle handle = acquireChannel(fileName, false);
+        try {
+            return readAhead(handle.channel, fileName, fromBlock);
+        }
+        finally {
+            releaseChannel(handle);
+        }
+    }
+
+    private int readAhead(FileChannel channel, String fileName, int fromBlock) throws IOException {
+        long blocksInFile = channel.size() / blockSize;
+        // 缓冲区很小时少读一些, 给被钉住的块留出位置.
+        int limit = Math.min(READ_AHEAD_BLOCKS, buffer.length / 4);
+        int count = 0;
+        while (count < limit && fromBlock + count < blocksInFile
+                && getIfIsInBuffer(fileName, fromBlock + count) == null)
+            count++;
+        if (count == 0)
+            return 0;
+
+        // 新申请的块在登记之前处于占用状态, 不参与替换, 所以申请后面的块时不会把前面的换出去.
+        BufferNode[] nodes = new BufferNode[count];
+        ByteBuffer[] dsts = new ByteBuffer[count];
+        for (int i=0; i<count; i++) {
+            nodes[i] = tryGetEmptyBufferNode();
+            if (nodes[i] == null) { // 别的线程占着太多块, 少读一些
+                count = i;
+                if (count == 0)
+                    return 0;
+                nodes = Arrays.copyOf(nodes, count);
+                dsts = Arrays.copyOf(dsts, count);
+                break;
+            }
+            dsts[i] = nodes[i].dataView();
+        }
+        // 分散读使用通道的当前位置, 设置位置和读取之间不能有别的线程移动它.
+        long start = System.nanoTime();
+        synchronized (channel) {
+            channel.position((long) fromBlock * blockSize);
+            long remaining = (long) count * blockSize;
+            while (remaining > 0) {
+                long n = channel.read(dsts);
+                if (n < 0)
+                    break;
+                remaining -= n;
+            }
+        }
+        stats.recordRead(fileName, count, (long) count * blockSize, System.nanoTime() - start, true);
+        for (int i=0; i<count; i++)
+            publish(nodes[i], fileName, fromBlock + i);
+        lastReadBlock.put(fileName, fromBlock + count - 1);
+        return count;
+    }
+
+    // 根据文件名和块偏移, 申请一个块并将其初始化. 返回的块没有被钉住, 只适合单线程使用.
+    // 节点分裂时要在文件中增加一个块作为新节点, 把旧节点中一半的数据复制到新节点中.
+    // 调用者需要钉住(pin)旧节点, 否则申请新块时旧节点可能被替换出去.
     public BufferNode createBufferNode(String fileName, int blockOffset) throws IOException {
-        BufferNode node = getEmptyBufferNodeExcept(fileName);
-        node.fileName = fileName;
-        node.blockOffset = blockOffset;
-        node.isWritten = true;
+        BufferNode node = pinNewBufferNode(fileName, blockOffset);
+        node.unpin();
         return node;
     }
 
-    // 读入指定的块到 buffer 中指定的 node.
-    public void readBlock(String fileName, int blockOffset, BufferNode node) throws IOException {
-        node.isValid = true;
-        node.isWritten = false;
-        node.fileName = fileName;
-        node.blockOffset = blockOffset;
-        RandomAccessFile fin = new RandomAccessFile(fileName, "r");
-        fin.seek(node.blockOffset * BLOCK_SIZE);
-        // read 在读取 data.length 个字节就结束读取.
-        fin.read(node.data);
-        fin.close();
-        writeBlock(node); // 将该块标记为已修改.
+    // 同 createBufferNode, 但返回时块已被钉住, 用完后调用者要 unpin.
+    public BufferNode pinNewBufferNode(String fileName, int blockOffset) throws IOException {
+        BufferNode node = getEmptyBufferNode();
+        while (true) {
+            synchronized (poolLock) {
+                BufferNode old = getIfIsInBuffer(fileName, blockOffset);
+                if (old == null || !old.isClaimed()) {
+                    if (old != null) { // 文件中的旧块作废, 由新块代替
+                        unbindBlock(old);
+                        old.isValid = false;
+                        old.setWritten(false);
+                        synchronized (replacer) {
+                            replacer.remove(old);
+                        }
+                        freeList.add(old);
+                    }
+                    node.isValid = true;
+                    node.setWritten(true);
+                    bindBlock(node, fileName, blockOffset);
+                    synchronized (replacer) {
+                        replacer.access(node);
+                    }
+                    node.release();
+                    node.pin();
+                    return node;
+                }
+            }
+            Thread.yield(); // 旧块正在被换出(写回), 等它移出页表
+        }
     }
 
-    // 把一个块标记为已更新过, 并标记为最近使用.
-    private void writeBlock(BufferNode node) {
-        node.isWritten = true;
-        useBlock(node);
+    // 把 node 读入为文件中指定的块.
+    private void loadBlock(BufferNode node, String fileName, int blockOffset) throws IOException {
+        long start = System.nanoTime();
+        FileHandle handle = acquireChannel(fileName, false);
+        ByteBuffer dst = node.dataView();
+        try {
+            long position = (long) blockOffset * blockSize;
+            // 读满 data.length 个字节或读到文件末尾就结束读取.
+            while (dst.hasRemaining()) {
+                int n = handle.channel.read(dst, position);
+                if (n < 0)
+                    break;
+                position += n;
+            }
+        }
+        finally {
+            releaseChannel(handle);
+        }
+        stats.recordRead(fileName, 1, blockSize - dst.remaining(), System.nanoTime() - start, false);
+        publish(node, fileName, blockOffset);
     }
 
-    // LRU 算法代价较高, 每次写一个块时, 将其 LRUValue 置为0, 将其他的全部块 LRUValue 递增.
-    private void useBlock(BufferNode node) {
-        node.LRUValue = 0;
-        node.isValid = true;
-        for (int i=0; i<BUFFER_SIZE; i++) {
-            if (buffer[i] != node)
-                buffer[i].LRUValue++; // LRUValue 越大, 说明最近访问越少.
+    // 把刚读入数据的 node (处于占用状态) 登记到页表并交给替换策略, 之后别的线程才能找到它.
+    // 读入的块是干净的, 只有修改它的操作才会设置 isWritten.
+    // 如果该块已经被别的线程(例如预读)读入, 放弃 node, 把它放回空闲队列.
+    private void publish(BufferNode node, String fileName, int blockOffset) {
+        synchronized (poolLock) {
+            if (getIfIsInBuffer(fileName, blockOffset) != null) {
+                node.initialize();
+                node.release();
+                freeList.add(node);
+                return;
+            }
+            node.isValid = true;
+            node.setWritten(false);
+            bindBlock(node, fileName, blockOffset);
+            useBlock(node);
+            node.release();
         }
     }
 
-    // 找出非 Valid(表示该块中存的数据是已经被删除的表或索引) 或者 LURValue 最高的块, 将其替换出去.
-    // 返回一个新的可用的 block.
-    public BufferNode getEmptyBufferNode() throws IOException {
-        int bufferIndex = 0;
-        int maxLRUValue = buffer[0].LRUValue;
+    // 把新读入或新增的块交给替换策略记录. 代价为 O(1), 与缓冲区大小无关. 命中时不经过这里(见 pinBufferNode).
+    // 正在顺序扫描的文件(beginScan)的访问标记为扫描访问, 不挤掉其他常用的块.
+    // 已经失效(setInvalid)的块不再交给替换策略, 否则它会同时出现在空闲队列和替换策略中.
+    private void useBlock(BufferNode node) {
+        synchronized (replacer) {
+            if (!node.isValid)
+                return;
+            if (scanningFiles.containsKey(node.fileName))
+                replacer.accessScan(node);
+            else
+                replacer.access(node);
+        }
+    }
 
-        for (int i=0; i<BUFFER_SIZE; i++) {
-            if (!buffer[i].isValid){
-                buffer[i].isValid = true;
-                return buffer[i];
+    // 优先使用空闲块(非 Valid, 表示该块中存的数据是已经被删除的表或索引, 或已被写回清空),
+    // 否则由替换策略选出一个没有被钉住的块, 将其替换出去.
+    // 返回一个已清空的块, 处于占用状态(不在页表和替换策略中, 不能被钉住), 调用者登记后再释放占用.
+    // 所有块都被钉住或占用时, 等别的线程释放一会儿, 仍然没有才放弃.
+    private BufferNode getEmptyBufferNode() throws IOException {
+        for (int attempt = 0; attempt < EMPTY_BLOCK_RETRIES; attempt++) {
+            BufferNode node = tryGetEmptyBufferNode();
+            if (node != null)
+                return node;
+            try {
+                Thread.sleep(1);
             }
-            else if (buffer[i].LRUValue > maxLRUValue) {
-                maxLRUValue = buffer[i].LRUValue;
-                bufferIndex = i;
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
-        flashBack(bufferIndex);
-        buffer[bufferIndex].isValid = true;
-        return buffer[bufferIndex];
+        // if no bufferNode can be replaced, break down.
+        System.err.println("Buffer out of space, all blocks are pinned.");
+        exit(1);
+        return null;
     }
 
-    // 也是替换块, 但是限制了相同文件名的块无法被替换出去.
-    public BufferNode getEmptyBufferNodeExcept(String fileName) throws IOException {
-        int bufferIndex = -1;
-        int maxLRUValue = buffer[0].LRUValue;
-        for (int i=0; i<BUFFER_SIZE; i++){
-            if (!buffer[i].isValid){
-                buffer[i].isValid = true;
-                return buffer[i];
+    // 同 getEmptyBufferNode, 但没有可替换的块时立即返回 null.
+    // 在 poolLock 内只选出并占用要换出的块; 写回在锁外进行. 写回期间块仍登记在页表中但处于占用状态,
+    // 查到它的线程会等它移出页表后再从文件读入, 那时文件中已经是最新的内容.
+    private BufferNode tryGetEmptyBufferNode() throws IOException {
+        BufferNode node = null;
+        synchronized (poolLock) {
+            // 空闲块可能正被一个刚查到旧页表项的线程临时钉住, 这时换一个.
+            for (int i = freeList.size(); i > 0; i--) {
+                BufferNode free = freeList.poll();
+                if (free.claim()) {
+                    free.initialize();
+                    return free;
+                }
+                freeList.add(free);
             }
-            // 缓冲区中相同文件名的块不能被替换?
-            else if (buffer[i].LRUValue > maxLRUValue && !buffer[i].fileName.equals(fileName)){
-                maxLRUValue = buffer[i].LRUValue;
-                bufferIndex = i;
+            synchronized (replacer) {
+                while (node == null) {
+                    node = replacer.victim();
+                    if (node == null)
+                        return null;
+                    // 选中之后、占用之前可能被别的线程钉住, 这时重新选择.
+                    if (!node.claim())
+                        node = null;
+                }
+                replacer.evict(node);
             }
         }
-        // if no bufferNode can be replaced, break down.
-        if (bufferIndex == -1){
-            System.err.println("Buffer out of space, unable to allocate new room.");
-            exit(1);
+        stats.recordEviction();
+        try {
+            flashBack(node);
         }
-
-        flashBack(bufferIndex);
-        buffer[bufferIndex].isValid = true;
-        return buffer[bufferIndex];
+        catch (IOException | RuntimeException e) {
+            // 写回失败: 块还登记在页表中, 修改标记已恢复. 把它放回替换策略并释放占用, 修改不会丢失.
+            // 期间文件被删除的块(非 Valid)不在页表中, 放回空闲队列.
+            synchronized (poolLock) {
+                useBlock(node);
+                node.release();
+                if (!node.isValid)
+                    freeList.add(node);
+            }
+            throw e;
+        }
+        synchronized (poolLock) {
+            unbindBlock(node);
+        }
+        node.initialize();
+        return node;
     }
 
     public void setInvalid(String fileName) {
-        for (int i=0; i<BUFFER_SIZE; i++){
-            if (buffer[i].fileName.equals(fileName)) {
-                buffer[i].isValid = false;
-                buffer[i].isWritten = false;
+        closeFile(fileName);
+        synchronized (poolLock) {
+            ConcurrentHashMap<Integer, BufferNode> blocks = pageTable.remove(fileName);
+            if (blocks != null) {
+                for (BufferNode node : blocks.values()) {
+                    synchronized (replacer) {
+                        node.isValid = false;
+                        node.setWritten(false);
+                        replacer.remove(node);
+                    }
+                    // 正在被换出的块不放回空闲队列, 换出它的线程会把它清空后自己使用 (无效的块不会被写回).
+                    if (!node.isClaimed())
+                        freeList.add(node);
+                }
+            }
+            synchronized (replacer) {
+                replacer.forgetFile(fileName);
             }
         }
     }
 
     // 给记录对应的文件中增加一个块, 返回这个块.
     public BufferNode addBlockInFile(Table table_info) throws IOException {
-        BufferNode node = getEmptyBufferNode();
-        node.initialize();
-        node.isValid = true;
-        node.isWritten = true;
-        node.fileName = table_info.name + ".table";
-        node.blockOffset = table_info.blockNum++;
-        return node;
+        mappings.remove(table_info.name + ".table"); // 文件变长了, 下次只读访问时重新映射
+        return appendBlock(table_info.name + ".table", table_info, null);
     }
 
     // 给索引对应的文件增加一个块.
     public BufferNode addBlockInFile(Index index_info) throws IOException {
         String fileName = index_info.indexName + ".index";
-        BufferNode node = getEmptyBufferNodeExcept(fileName);
-        node.initialize();
-        node.isValid = true;
-        node.isWritten = true;
-        node.fileName = fileName;
-        node.blockOffset = index_info.blockNum++;
+        mappings.remove(fileName);
+        return appendBlock(fileName, null, index_info);
+    }
+
+    // 在文件末尾增加一个空块. 块号在 poolLock 内分配, 多个线程同时增加块时不会重复.
+    private BufferNode appendBlock(String fileName, Table table_info, Index index_info) throws IOException {
+        BufferNode node = getEmptyBufferNode();
+        synchronized (poolLock) {
+            int blockNum = table_info != null ? table_info.blockNum++ : index_info.blockNum++;
+            node.isValid = true;
+            node.setWritten(true);
+            bindBlock(node, fileName, blockNum);
+            useBlock(node);
+            node.release();
+        }
         return node;
     }
 
@@ -190,18 +753,16 @@ public class BufferManager {
     public void readWholeTable(Table table_info) throws IOException {
         String fileName = table_info.name + ".table";
         for (int blockOffset=0; blockOffset < table_info.blockNum; blockOffset++) {
-            if (getIfIsInBuffer(fileName, blockOffset) == null) {
-                BufferNode node = getEmptyBufferNodeExcept(fileName);
-                readBlock(fileName, blockOffset, node);
-            }
+            if (getIfIsInBuffer(fileName, blockOffset) == null && readAhead(fileName, blockOffset) == 0)
+                loadBlock(getEmptyBufferNode(), fileName, blockOffset);
         }
     }
 
     // 打印出缓冲区中的 Block 的数据.
     public void showBuffer(int index) {
         BufferNode node = buffer[index];
-        String info = String.format("BufferIndex:%d, IsWritten:%b, IsValid:%b, FileName:%s, blockOffset:%d, LRU:%d",
-                index, node.isWritten, node.isValid, node.fileName, node.blockOffset, node.LRUValue
+        String info = String.format("BufferIndex:%d, IsWritten:%b, IsValid:%b, FileName:%s, blockOffset:%d",
+                index, node.isWritten(), node.isValid, node.fileName, node.blockOffset
                 );
         System.out.println(info);
     }
@@ -220,98 +781,321 @@ public class BufferManager {
     }
 }
 
+// 句柄缓存中的一个打开的文件. users 是正在通过它读写的次数; 句柄被移出缓存(retire)后,
+// 最后一个使用者用完时才关闭通道, 其他线程不会在读写中途遇到 ClosedChannelException.
+// users 和 retired 都在 BufferManager.openFiles 上同步.
+class FileHandle {
+    final FileChannel channel;
+    int users = 0;
+    private boolean retired = false;
+
+    FileHandle(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    void retire() {
+        retired = true;
+        closeIfUnused();
+    }
+
+    void closeIfUnused() {
+        if (!retired || users > 0)
+            return;
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            System.err.println("BufferManager: failed to close file.");
+        }
+    }
+}
+
 class BufferNode {
 
-    public static final int BLOCK_SIZE = 4096;
-    public boolean isWritten;
-    public boolean isValid;
-    public String fileName;
-    public int blockOffset;
-    public int LRUValue;
-    public byte[] data = new byte[BLOCK_SIZE];
-    private boolean isLocked;
+    // 块被修改过、还没有写回文件(脏块). 只能通过 isWritten() / setWritten() 访问,
+    // 这样 BufferManager 可以随时知道脏块的个数, 不必扫描整个缓冲区.
+    private final AtomicBoolean written = new AtomicBoolean(false);
+    // 所属 BufferManager 的脏块计数和变脏次数, written 每次翻转时随之更新. mmap 读出的块不会被修改, 为 null.
+    private final AtomicInteger dirtyBlocks;
+    private final AtomicLong dirtiedBlocks;
+    public volatile boolean isValid;
+    public volatile String fileName;
+    public volatile int blockOffset;
+    public int bufferIndex; // 在 BufferManager.buffer 中的序号, 创建后不变.
+    // 块的内容. 默认包装一个堆上的 byte[]; 使用堆外缓冲区时是一大块直接内存中的一段切片.
+    // 只能通过下面的 getXXX / setXXX / copyTo 访问, 这样两种存储方式对调用者是一样的.
+    private ByteBuffer data;
+    // 块在 data 中的起始位置. 缓冲区中的块是 0; mmap 读出的块(视图)的 data 是整个文件映射, base 是块在文件中的位置,
+    // 这样同一个视图可以改为指向下一块(remap), 顺序扫描时不必每块创建一个新对象.
+    private int base = 0;
+    private final boolean isView;
+    // 被钉住的次数, 大于 0 时该块不会被替换出去; -1 表示正在被替换或读入(占用), 此时不能被钉住.
+    private AtomicInteger pinCount = new AtomicInteger(0);
+    // 引用位: 命中时不加锁地置位, 替换策略选择换出的块时清零(见 Replacer).
+    private volatile boolean referenced = false;
 
 //  不可使用默认初始化,因为字符串为 null 的话会很麻烦.
 
-    public BufferNode() {
-        isWritten = false;
+    public BufferNode(int blockSize) {
+        this(ByteBuffer.allocate(blockSize));
+    }
+
+    // data 的容量就是块大小.
+    public BufferNode(ByteBuffer data) {
+        this(data, null, null);
+    }
+
+    // 缓冲区中的块: 脏标记翻转时更新 dirtyBlocks 和 dirtiedBlocks.
+    BufferNode(ByteBuffer data, AtomicInteger dirtyBlocks, AtomicLong dirtiedBlocks) {
+        this.data = data;
+        this.dirtyBlocks = dirtyBlocks;
+        this.dirtiedBlocks = dirtiedBlocks;
+        isView = false;
         isValid = false;
         fileName = "";
         blockOffset = 0;
-        LRUValue = 0;
-        isLocked = false;
     }
 
+    // mmap 读出的块: 只读, 不在缓冲区中, 不参与替换. 创建后用 remap 指向文件中的块.
+    private BufferNode() {
+        dirtyBlocks = null;
+        dirtiedBlocks = null;
+        isView = true;
+    }
+
+    static BufferNode mappedView() {
+        return new BufferNode();
+    }
+
+    boolean isMappedView() {
+        return isView;
+    }
+
+    // 让视图指向 mapping 中的第 blockOffset 块. 调用者要保证此时没有别人在用(钉住)这个视图.
+    void remap(ByteBuffer mapping, String fileName, int blockOffset, int blockSize) {
+        data = mapping;
+        base = blockOffset * blockSize;
+        this.fileName = fileName;
+        this.blockOffset = blockOffset;
+        isValid = true;
+    }
+
+    // 只用于缓冲区中的块.
     public void initialize() {
-        this.isWritten = false;
+        setWritten(false);
+        referenced = false;
         this.isValid = false;
         this.fileName = "";
         this.blockOffset = 0;
-        this.LRUValue = 0;
-        // 清空字节数组.
-        for (int i=0; i< BLOCK_SIZE; i++)
-            data[i] = 0;
+        // 清空块的内容.
+        for (int i=0; i< data.capacity(); i+=8)
+            data.putLong(i, 0L);
+    }
+
+    public boolean isWritten() {
+        return written.get();
+    }
+
+    // 设置脏标记. 已经是脏块时只读一次, 不写共享变量; 真正翻转时才更新脏块计数.
+    public void setWritten(boolean value) {
+        if (written.get() != value && written.compareAndSet(!value, value) && dirtyBlocks != null) {
+            if (value) {
+                dirtyBlocks.incrementAndGet();
+                dirtiedBlocks.incrementAndGet();
+            }
+            else
+                dirtyBlocks.decrementAndGet();
+        }
+    }
+
+    // 返回覆盖整个块的一个新视图(position 为 0), 用于文件读写. 只用于缓冲区中的块.
+    ByteBuffer dataView() {
+        return data.duplicate();
+    }
+
+    // 钉住该块. 每次 pin 都要有对应的 unpin.
+    // 多线程时应通过 BufferManager.pinXXX 钉住块; 只能 pin 已经钉住或不会被并发替换的块.
+    public void pin() {
+        if (!tryPin())
+            throw new IllegalStateException("BufferNode: pin on a block that is being replaced.");
     }
 
-    public void lock() {
-        isLocked = true;
+    // 块没有被占用时钉住它, 返回是否成功.
+    boolean tryPin() {
+        while (true) {
+            int count = pinCount.get();
+            if (count < 0)
+                return false;
+            if (pinCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    public void unpin() {
+        while (true) {
+            int count = pinCount.get();
+            if (count <= 0 || pinCount.compareAndSet(count, count - 1))
+                return;
+        }
     }
 
-    public void unlock() {
-        isLocked = false;
+    public boolean isPinned() {
+        return pinCount.get() > 0;
+    }
+
+    // 是否被占用(正在被替换或读入).
+    boolean isClaimed() {
+        return pinCount.get() < 0;
+    }
+
+    // 命中时调用: 置引用位, 表示上次被替换策略检查之后又被用过. 已经置位时不再写, 减少多核间的缓存同步.
+    void reference() {
+        if (!referenced)
+            referenced = true;
+    }
+
+    // 替换策略调用: 返回引用位并把它清零.
+    boolean clearReferenced() {
+        if (!referenced)
+            return false;
+        referenced = false;
+        return true;
+    }
+
+    // 占用块(钉住计数从 0 变为 -1), 成功后别的线程不能再钉住它, 用于替换和读入.
+    boolean claim() {
+        return pinCount.compareAndSet(0, -1);
+    }
+
+    // 释放占用.
+    void release() {
+        pinCount.set(0);
     }
 
     String getString(int start, int end) {
-        byte[] tmp = new byte[end-start+1];
-        for (int i=start; i<end; i++)
-            tmp[i] = data[i];
-        String res = new String(tmp);
-        return res;
+        return new String(getBytes(start, end-start));
     }
 
-    public void setInt(int pos, int length,int sourceInt){
+    public byte getByte(int pos){
+        return data.get(base+pos);
+    }
 
+    public void setByte(int pos, byte b){
+        data.put(base+pos, b);
+        setWritten(true);
+    }
+
+    public void setInt(int pos, int length,int sourceInt){
+        if (length == 4) {
+            data.putInt(base+pos, sourceInt);
+            setWritten(true);
+            return;
+        }
         for(int i=0;i<length;i++){
-            data[i+pos]=(byte)(sourceInt>>8*(3-i)&0xFF);
+            data.put(base+i+pos, (byte)(sourceInt>>8*(3-i)&0xFF));
         }
-        isWritten = true;
+        setWritten(true);
     }
 
     public int getInt(int pos, int length){
+        if (length == 4)
+            return data.getInt(base+pos);
         int k=0;
         for(int i=0;i<length;i++){
-            k  +=(data[i+pos] & 0xFF)<<(8*(3-i));
+            k  +=(data.get(base+i+pos) & 0xFF)<<(8*(3-i));
         }
         return k;
     }
 
+    // 下面几个方法直接读块中的数据, 不复制, 也不创建新对象. 多字节数值都是大端序(Java 默认).
+    // ByteBuffer 的绝对位置 getInt/getFloat 会被 JIT 编译成一次内存读, 堆上和堆外的块都一样.
+
+    // 读 pos 处的 4 字节整数.
+    public int getIntAt(int pos){
+        return data.getInt(base+pos);
+    }
+
+    // 读 pos 处的 4 字节浮点数.
+    public float getFloatAt(int pos){
+        return data.getFloat(base+pos);
+    }
+
+    // 把块中 [pos, pos+length) 和 other 按无符号字节逐个比较, 前面都相同时短的较小.
+    // 对 ASCII 字符串, 结果的符号与 new String(...).compareTo 相同.
+    public int compareBytesAt(int pos, int length, byte[] other){
+        if (data.hasArray())
+            return Arrays.compareUnsigned(data.array(), data.arrayOffset()+base+pos, data.arrayOffset()+base+pos+length,
+                    other, 0, other.length);
+        int n = Math.min(length, other.length);
+        for (int i=0; i<n; i++) {
+            int c = (data.get(base+pos+i) & 0xFF) - (other[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return length - other.length;
+    }
+
+    // 块中 [pos, pos+other.length) 的内容是否与 other 相同.
+    public boolean equalsBytesAt(int pos, byte[] other){
+        if (data.hasArray())
+            return Arrays.equals(data.array(), data.arrayOffset()+base+pos, data.arrayOffset()+base+pos+other.length,
+                    other, 0, other.length);
+        for (int i=0; i<other.length; i++) {
+            if (data.get(base+pos+i) != other[i])
+                return false;
+        }
+        return true;
+    }
+
     public byte[] getBytes(int startpos, int length){
         byte[] b = new byte[length];
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset()+base+startpos, b, 0, length);
+            return b;
+        }
         for(int i =0;i<length;i++){
-            b[i]=data[startpos+i];
+            b[i]=data.get(base+startpos+i);
         }
         return b;
     }
 
     public void setBytes(int startpos, byte[] sourcebyte){
-        //byte[] b = new byte[length];
-        for(int i =0;i<sourcebyte.length;i++){
-            data[startpos+i]=sourcebyte[i];
+        if (data.hasArray())
+            System.arraycopy(sourcebyte, 0, data.array(), data.arrayOffset()+base+startpos, sourcebyte.length);
+        else {
+            for(int i =0;i<sourcebyte.length;i++){
+                data.put(base+startpos+i, sourcebyte[i]);
+            }
+        }
+        setWritten(true);
+    }
+
+    // 把本块 [srcPos, srcPos+length) 的内容复制到 dest 块的 destPos 处, 相当于 System.arraycopy.
+    // dest 可以是本块自身, 区间重叠时结果也是正确的.
+    public void copyTo(int srcPos, BufferNode dest, int destPos, int length){
+        if (data.hasArray() && dest.data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset()+base+srcPos,
+                    dest.data.array(), dest.data.arrayOffset()+dest.base+destPos, length);
+        }
+        else {
+            byte[] tmp = getBytes(srcPos, length);
+            for (int i=0; i<length; i++)
+                dest.data.put(dest.base+destPos+i, tmp[i]);
         }
-        isWritten=true;
+        dest.setWritten(true);
     }
 
     public void setInternalKey(int pos,byte[] key,int offset) {
         setBytes(pos,key);
         setInt(pos+key.length,4,offset);
-        isWritten=true;
+        setWritten(true);
     }
 
     public  void setKeyData(int pos,byte[] insertKey,int blockOffset,int offset) {
         setInt(pos,4,blockOffset);
         setInt(pos+4,4,offset);
         setBytes(pos+8,insertKey);
-        isWritten=true;
+        setWritten(true);
     }
 
 
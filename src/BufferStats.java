@@ -0,0 +1,230 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓冲区和文件读写的统计: 命中/未命中, 替换, 脏块写回, 读写字节数, 读写延迟, 以及按文件的统计.
+ * 由 BufferManager 在各处调用 recordXXX 更新, 计数器都是无锁的, 多个线程可以同时更新.
+ * 可以用 show buffer stats 语句打印, 也可以通过 JMX 查看.
+ */
+public class BufferStats implements BufferStatsMXBean {
+    private BufferManager bm;
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+    private LongAdder dirtyFlushes = new LongAdder();
+    private LongAdder blocksRead = new LongAdder();
+    private LongAdder readAheadBlocks = new LongAdder();
+    private LongAdder mappedReads = new LongAdder();
+    private LongAdder bytesRead = new LongAdder();
+    private LongAdder bytesWritten = new LongAdder();
+    private Histogram readLatency = new Histogram();
+    private Histogram writeLatency = new Histogram();
+    private ConcurrentHashMap<String, FileStats> files = new ConcurrentHashMap<String, FileStats>();
+
+    BufferStats(BufferManager bm) {
+        this.bm = bm;
+    }
+
+    // 以 minisql:type=BufferPool 注册到 JVM 的 MBeanServer. 同一进程中只能注册一个.
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new javax.management.ObjectName("minisql:type=BufferPool"));
+        }
+        catch (Exception e) {
+            System.err.println("BufferStats: failed to register MBean: " + e.getMessage());
+        }
+    }
+
+    private FileStats file(String fileName) {
+        return files.computeIfAbsent(fileName, f -> new FileStats());
+    }
+
+    void recordHit(String fileName) {
+        hits.increment();
+        file(fileName).hits.increment();
+    }
+
+    void recordMiss(String fileName) {
+        misses.increment();
+        file(fileName).misses.increment();
+    }
+
+    void recordMappedRead(String fileName) {
+        mappedReads.increment();
+        file(fileName).hits.increment(); // 不需要读文件, 算作命中
+    }
+
+    // 从文件读入 blocks 个块, 共 bytes 字节, 用时 nanos 纳秒. readAhead 表示是否是预读.
+    void recordRead(String fileName, int blocks, long bytes, long nanos, boolean readAhead) {
+        blocksRead.add(blocks);
+        if (readAhead)
+            readAheadBlocks.add(blocks);
+        bytesRead.add(bytes);
+        file(fileName).bytesRead.add(bytes);
+        readLatency.record(nanos);
+    }
+
+    // 用一次写操作把 blocks 个脏块写回文件, 共 bytes 字节, 用时 nanos 纳秒.
+    void recordWrite(String fileName, int blocks, long bytes, long nanos) {
+        dirtyFlushes.add(blocks);
+        bytesWritten.add(bytes);
+        file(fileName).bytesWritten.add(bytes);
+        writeLatency.record(nanos);
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    // 文件被删除后不再保留它的统计.
+    void forgetFile(String fileName) {
+        files.remove(fileName);
+    }
+
+    public int getBufferSize() { return bm.bufferSize; }
+    public int getBlockSize() { return bm.blockSize; }
+    public int getResidentBlocks() { return bm.getResidentBlocks(); }
+    public double getDirtyRatio() { return bm.getDirtyRatio(); }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    public long getDirtyFlushes() { return dirtyFlushes.sum(); }
+    public long getBlocksRead() { return blocksRead.sum(); }
+    public long getReadAheadBlocks() { return readAheadBlocks.sum(); }
+    public long getMappedReads() { return mappedReads.sum(); }
+    public long getBytesRead() { return bytesRead.sum(); }
+    public long getBytesWritten() { return bytesWritten.sum(); }
+
+    public double getHitRatio() {
+        long h = hits.sum() + mappedReads.sum(), m = misses.sum();
+        return h + m == 0 ? 0.0 : (double) h / (h + m);
+    }
+
+    public long getReadLatencyP50Micros() { return readLatency.percentile(0.50); }
+    public long getReadLatencyP99Micros() { return readLatency.percentile(0.99); }
+    public long getReadLatencyMaxMicros() { return readLatency.max(); }
+    public long getWriteLatencyP50Micros() { return writeLatency.percentile(0.50); }
+    public long getWriteLatencyP99Micros() { return writeLatency.percentile(0.99); }
+    public long getWriteLatencyMaxMicros() { return writeLatency.max(); }
+
+    public Map<String, Long> getHitsPerFile() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, FileStats> e : files.entrySet())
+            result.put(e.getKey(), e.getValue().hits.sum());
+        return result;
+    }
+
+    public Map<String, Long> getMissesPerFile() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, FileStats> e : files.entrySet())
+            result.put(e.getKey(), e.getValue().misses.sum());
+        return result;
+    }
+
+    public Map<String, Long> getBytesReadPerFile() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, FileStats> e : files.entrySet())
+            result.put(e.getKey(), e.getValue().bytesRead.sum());
+        return result;
+    }
+
+    public Map<String, Long> getBytesWrittenPerFile() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, FileStats> e : files.entrySet())
+            result.put(e.getKey(), e.getValue().bytesWritten.sum());
+        return result;
+    }
+
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+        dirtyFlushes.reset();
+        blocksRead.reset();
+        readAheadBlocks.reset();
+        mappedReads.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        readLatency.reset();
+        writeLatency.reset();
+        files.clear();
+    }
+
+    // show buffer stats 的输出.
+    public void print() {
+        System.out.println(String.format("Buffer pool: %d blocks of %d bytes, %d resident, %.1f%% dirty",
+                getBufferSize(), getBlockSize(), getResidentBlocks(), getDirtyRatio() * 100));
+        System.out.println(String.format("Hits: %d, misses: %d, mmap reads: %d, hit ratio: %.2f%%",
+                getHits(), getMisses(), getMappedReads(), getHitRatio() * 100));
+        System.out.println(String.format("Blocks read: %d (read-ahead %d), bytes read: %d",
+                getBlocksRead(), getReadAheadBlocks(), getBytesRead()));
+        System.out.println(String.format("Evictions: %d, dirty flushes: %d, bytes written: %d",
+                getEvictions(), getDirtyFlushes(), getBytesWritten()));
+        System.out.println(String.format("Read latency (us): p50 %d, p99 %d, max %d",
+                getReadLatencyP50Micros(), getReadLatencyP99Micros(), getReadLatencyMaxMicros()));
+        System.out.println(String.format("Write latency (us): p50 %d, p99 %d, max %d",
+                getWriteLatencyP50Micros(), getWriteLatencyP99Micros(), getWriteLatencyMaxMicros()));
+        System.out.println("file|hits|misses|bytes read|bytes written");
+        for (Map.Entry<String, FileStats> e : new TreeMap<String, FileStats>(files).entrySet()) {
+            FileStats f = e.getValue();
+            System.out.println(e.getKey() + "|" + f.hits.sum() + "|" + f.misses.sum() + "|"
+                    + f.bytesRead.sum() + "|" + f.bytesWritten.sum());
+        }
+    }
+
+    private static class FileStats {
+        LongAdder hits = new LongAdder();
+        LongAdder misses = new LongAdder();
+        LongAdder bytesRead = new LongAdder();
+        LongAdder bytesWritten = new LongAdder();
+    }
+
+    // 延迟直方图: 第 i 个桶记录 [2^i, 2^(i+1)) 微秒的次数, 第 0 个桶包括 1 微秒以下.
+    private static class Histogram {
+        private static final int BUCKETS = 32;
+        private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private LongAdder total = new LongAdder();
+        private volatile long max;
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = micros <= 1 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+            total.increment();
+            if (micros > max)
+                max = micros;
+        }
+
+        // 估计第 p 百分位数, 返回所在桶的上界.
+        long percentile(double p) {
+            long n = total.sum();
+            if (n == 0)
+                return 0;
+            long rank = (long) Math.ceil(p * n), seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return Math.min(max, (1L << (i + 1)) - 1);
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++)
+                counts.set(i, 0);
+            total.reset();
+            max = 0;
+        }
+    }
+}
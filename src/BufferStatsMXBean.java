@@ -0,0 +1,39 @@
+import java.util.Map;
+
+/**
+ * 通过 JMX 查看缓冲区和文件读写统计, ObjectName 为 minisql:type=BufferPool.
+ * 延迟的单位为微秒, 百分位数按 2 的幂分桶估计, 误差在 2 倍以内.
+ */
+public interface BufferStatsMXBean {
+    int getBufferSize();
+    int getBlockSize();
+    int getResidentBlocks();
+    double getDirtyRatio();
+
+    long getHits();
+    long getMisses();
+    double getHitRatio();
+    long getEvictions();
+    long getDirtyFlushes();
+    long getBlocksRead();
+    long getReadAheadBlocks();
+    long getMappedReads();
+    long getBytesRead();
+    long getBytesWritten();
+
+    long getReadLatencyP50Micros();
+    long getReadLatencyP99Micros();
+    long getReadLatencyMaxMicros();
+    long getWriteLatencyP50Micros();
+    long getWriteLatencyP99Micros();
+    long getWriteLatencyMaxMicros();
+
+    // 按文件名分别统计.
+    Map<String, Long> getHitsPerFile();
+    Map<String, Long> getMissesPerFile();
+    Map<String, Long> getBytesReadPerFile();
+    Map<String, Long> getBytesWrittenPerFile();
+
+    // 清零所有计数.
+    void reset();
+}
@@ -1,6 +1,7 @@
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -17,6 +18,22 @@ public class CatalogManager {
     private HashMap<String, Table> tables = new HashMap<String, Table>();
     private HashMap<String, Index> indices = new HashMap<String, Index>();
 
+    // Database settings, saved in database.json.
+    // The block size is fixed when the database is created because every table and index
+    // file is laid out in blocks of that size. The buffer pool size may change on each start-up.
+    private int blockSize;
+    private int bufferSize;
+    private volatile boolean settingsChanged;    // differ from database.json, or it does not exist yet
+
+    // The table and index catalogs as last written (or read) by this
+    // process; close() writes a file only if its content has changed.
+    private String savedTableCatalog;
+    private String savedIndexCatalog;
+    // Set when a table or an index is created or dropped.  Changes to the
+    // block counts and index roots always come with modified blocks, so
+    // the checkpointer notices those through the buffer manager.
+    private volatile boolean changed = false;
+
     private IndexManager im;
     private RecordManager rm;
 
@@ -26,8 +43,10 @@ public class CatalogManager {
     }
 
     public CatalogManager() {
-        // Load table catalog from table.json
         JSONParser parser = new JSONParser();
+        loadSettings(parser);
+
+        // Load table catalog from table.json
         try {
             JSONArray tableCatalog = (JSONArray) parser.parse(new FileReader("table.json"));
             for (Object table_o : tableCatalog) {
@@ -81,10 +100,103 @@ public class CatalogManager {
         catch (Exception e) {
             e.printStackTrace();
         }
+
+        savedTableCatalog = tableCatalogToJSON();
+        savedIndexCatalog = indexCatalogToJSON();
+    }
+
+    // Block size: the one recorded in database.json; for a new database, -Dminisql.blockSize or the default.
+    // It is part of the file format, so it is the only setting saved in database.json.
+    // Buffer size: -Dminisql.buffer.size, else the default.  It only applies to this run and is not saved.
+    // Bad values are reported and replaced by the default.
+    private void loadSettings(JSONParser parser) {
+        Integer requestedBlockSize = Integer.getInteger("minisql.blockSize");
+        Integer requestedBufferSize = Integer.getInteger("minisql.buffer.size");
+        Integer storedBlockSize = null;
+        boolean storedOtherSettings = false;
+        try {
+            JSONObject settings = (JSONObject) parser.parse(new FileReader("database.json"));
+            storedBlockSize = (int)(long) settings.get("blockSize");
+            storedOtherSettings = settings.size() > 1;    // e.g. a buffer size saved by older versions
+        }
+        catch (FileNotFoundException e) {
+            // Databases created before the settings were recorded always used the default block size.
+            if (new File("table.json").exists())
+                storedBlockSize = BufferManager.DEFAULT_BLOCK_SIZE;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (requestedBlockSize != null && !BufferManager.isValidBlockSize(requestedBlockSize)) {
+            int fallback = storedBlockSize != null ? storedBlockSize : BufferManager.DEFAULT_BLOCK_SIZE;
+            System.err.println("Unsupported block size: " + requestedBlockSize + ", using " + fallback + ".");
+            requestedBlockSize = null;
+        }
+        if (storedBlockSize != null) {
+            blockSize = storedBlockSize;
+            if (requestedBlockSize != null && requestedBlockSize != blockSize)
+                System.err.println("Block size of an existing database cannot be changed, using " + blockSize + ".");
+        }
+        else
+            blockSize = requestedBlockSize != null ? requestedBlockSize : BufferManager.DEFAULT_BLOCK_SIZE;
+        BufferManager.checkBlockSize(blockSize);
+
+        if (requestedBufferSize != null && requestedBufferSize < 1) {
+            System.err.println("Buffer size must be positive: " + requestedBufferSize
+                + ", using " + BufferManager.DEFAULT_BUFFER_SIZE + ".");
+            requestedBufferSize = null;
+        }
+        bufferSize = requestedBufferSize != null ? requestedBufferSize : BufferManager.DEFAULT_BUFFER_SIZE;
+
+        settingsChanged = storedBlockSize == null || storedBlockSize != blockSize || storedOtherSettings;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
     }
 
     public void close() {
-        // Save table catalog
+        // Save the block size, only when the database is new or database.json is out of date
+        if (settingsChanged) {
+            HashMap<String, Integer> settings = new HashMap<String, Integer>();
+            settings.put("blockSize", blockSize);
+            if (writeFile("database.json", JSONObject.toJSONString(settings)))
+                settingsChanged = false;
+        }
+
+        // Save table and index catalogs
+        String tableCatalog = tableCatalogToJSON();
+        if (!tableCatalog.equals(savedTableCatalog) && writeFile("table.json", tableCatalog))
+            savedTableCatalog = tableCatalog;
+        String indexCatalog = indexCatalogToJSON();
+        if (!indexCatalog.equals(savedIndexCatalog) && writeFile("index.json", indexCatalog))
+            savedIndexCatalog = indexCatalog;
+        changed = false;
+    }
+
+    // Whether the settings are not saved yet, or a table or an index has
+    // been created or dropped since the last close().
+    public boolean hasUnsavedChanges() {
+        return changed || settingsChanged;
+    }
+
+    private static boolean writeFile(String fileName, String content) {
+        try (FileWriter file = new FileWriter(fileName)) {
+            file.write(content);
+            return true;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private String tableCatalogToJSON() {
         JSONArray tableCatalog = new JSONArray();
         for (Table table : tables.values()) {
             JSONObject tableObj = new JSONObject();
@@ -110,14 +222,10 @@ public class CatalogManager {
 
             tableCatalog.add(tableObj);
         }
-        try (FileWriter file = new FileWriter("table.json")) {
-            file.write(tableCatalog.toJSONString());
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
+        return tableCatalog.toJSONString();
+    }
 
-        // Save index catalog
+    private String indexCatalogToJSON() {
         JSONArray indexCatalog = new JSONArray();
         for (Index index : indices.values()) {
             JSONObject indexObj = new JSONObject();
@@ -131,12 +239,7 @@ public class CatalogManager {
             indexObj.put("type", index.type);
             indexCatalog.add(indexObj);
         }
-        try (FileWriter file = new FileWriter("index.json")) {
-            file.write(indexCatalog.toJSONString());
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
+        return indexCatalog.toJSONString();
     }
 
     public void createTable(String tableName, ArrayList<Attribute> attrs)
@@ -145,6 +248,7 @@ public class CatalogManager {
         if (tableExisted(tableName))
             throw new TableExistedException(tableName);
         Table t = new Table(tableName, attrs);
+        changed = true;
         rm.createTable(t);
 
         tables.put(tableName, t);
@@ -186,6 +290,7 @@ public class CatalogManager {
                 index.columnLength = attr.length;
                 index.type = attr.type;
                 attr.index = indexName;
+                changed = true;
                 im.createIndex(table, index);
                 indices.put(indexName, index);
                 indexNum++;
@@ -212,6 +317,7 @@ public class CatalogManager {
         }
 
         Table table = getTable(tableName);
+        changed = true;
         rm.dropTable(table);
         tables.remove(tableName);
         tableNum--;
@@ -231,6 +337,7 @@ public class CatalogManager {
         if (!indexExisted(indexName))
             throw new IndexNotFoundException(indexName);
 
+        changed = true;
         im.dropIndex(indexName);
         indices.remove(indexName);
         indexNum--;
@@ -0,0 +1,127 @@
+import java.io.IOException;
+
+/**
+ * 检查点线程.
+ * 代替每条语句执行后都保存目录并写回全部脏块的做法: 后台线程定期检查,
+ * 距离上次检查点超过 intervalMillis, 或脏块占缓冲区的比例超过 dirtyRatio 时,
+ * 保存目录(table.json / index.json)和各表的空闲空间表(.fsm), 并把脏块写回文件. commit 和 quit 时也会做一次检查点.
+ *
+ * 检查点与语句执行互斥: 两者都在 BufferManager 对象上同步, 所以检查点只会发生在两条语句之间.
+ * 后台线程轮询时只读 BufferManager 的计数器和目录的修改标志, 不占用语句锁;
+ * 上次检查点以来没有任何修改时(空闲或只读), 不做检查点, 也不写任何文件.
+ */
+class Checkpointer extends Thread {
+    private static final long POLL_MILLIS = 100;
+    static final long DEFAULT_INTERVAL_MILLIS = 5000;
+    static final double DEFAULT_DIRTY_RATIO = 0.5;
+
+    private BufferManager bm;
+    private CatalogManager cm;
+    private RecordManager rm;
+    private long intervalMillis;
+    private double dirtyRatio;
+    private volatile long lastCheckpoint;
+    private volatile long dirtiedAtCheckpoint; // 上次检查点时 bm.getDirtiedBlocks() 的值
+    private volatile boolean running = true;
+
+    Checkpointer(BufferManager bm, CatalogManager cm, RecordManager rm, long intervalMillis, double dirtyRatio) {
+        super("minisql-checkpointer");
+        setDaemon(true);
+        this.bm = bm;
+        this.cm = cm;
+        this.rm = rm;
+        this.intervalMillis = intervalMillis;
+        this.dirtyRatio = dirtyRatio;
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    // -Dminisql.checkpoint.interval (毫秒), 不能为负数. 不合法时报告并使用默认值.
+    static long parseInterval(String value) {
+        if (value == null)
+            return DEFAULT_INTERVAL_MILLIS;
+        try {
+            long interval = Long.parseLong(value.trim());
+            if (interval >= 0)
+                return interval;
+        }
+        catch (NumberFormatException e) {
+        }
+        System.err.println("Checkpoint interval must be a non-negative number of milliseconds: " + value
+            + ", using " + DEFAULT_INTERVAL_MILLIS + ".");
+        return DEFAULT_INTERVAL_MILLIS;
+    }
+
+    // -Dminisql.checkpoint.dirtyRatio, 范围 (0, 1]. 不合法时报告并使用默认值.
+    static double parseDirtyRatio(String value) {
+        if (value == null)
+            return DEFAULT_DIRTY_RATIO;
+        try {
+            double ratio = Double.parseDouble(value.trim());
+            if (ratio > 0 && ratio <= 1)
+                return ratio;
+        }
+        catch (NumberFormatException e) {
+        }
+        System.err.println("Checkpoint dirty ratio must be in (0, 1]: " + value + ", using " + DEFAULT_DIRTY_RATIO + ".");
+        return DEFAULT_DIRTY_RATIO;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            boolean timeUp = System.currentTimeMillis() - lastCheckpoint >= intervalMillis;
+            if (!(timeUp && hasChanges()) && bm.getDirtyRatio() < dirtyRatio)
+                continue;
+            synchronized (bm) {
+                if (!running)
+                    break;
+                try {
+                    checkpoint();
+                }
+                catch (IOException e) {
+                    System.err.println("Checkpointer: failed to write back dirty blocks.");
+                }
+            }
+        }
+    }
+
+    // 上次检查点以来有没有修改: 还有脏块, 有块变脏过(可能已在替换时写回, 但表和索引的块数等目录信息还没保存),
+    // 或者建立/删除过表和索引. 只读计数器和标志, 不需要持有语句锁.
+    private boolean hasChanges() {
+        return bm.getDirtyBlocks() > 0 || bm.getDirtiedBlocks() != dirtiedAtCheckpoint || cm.hasUnsavedChanges();
+    }
+
+    // 保存目录和空闲空间表并写回所有脏块, 返回写回的块数. 没有任何修改时直接返回 0.
+    public int checkpoint() throws IOException {
+        synchronized (bm) {
+            lastCheckpoint = System.currentTimeMillis();
+            if (!hasChanges() && !rm.hasUnsavedFreeSpaceMaps())
+                return 0;
+            long dirtied = bm.getDirtiedBlocks();
+            cm.close();
+            rm.saveFreeSpaceMaps();
+            int flushed = bm.WriteAllToFile();
+            dirtiedAtCheckpoint = dirtied;
+            return flushed;
+        }
+    }
+
+    // 停止后台线程, 并做最后一次检查点.
+    // 不能中断后台线程: 它可能正在写回脏块, 被中断的 FileChannel 会被关闭, 最后一次检查点就写不进去了.
+    // 后台线程最多睡 POLL_MILLIS 就会看到 running 变成 false.
+    public int shutdown() throws IOException {
+        running = false;
+        try {
+            join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return checkpoint();
+    }
+}
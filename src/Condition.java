@@ -1,3 +1,6 @@
+import java.util.Arrays;
+import java.util.List;
+
 public class Condition {
     final static int OPERATION_EQUAL = 0;
     final static int OPERATION_NOT_EQUAL = 1;
@@ -16,6 +19,14 @@ public class Condition {
     String attribute_name;
     String value;
     int operate;
+    private byte[] valueBytes;    // value encoded the same way char columns are stored
+
+    byte[] getValueBytes()
+    {
+        if (valueBytes == null)
+            valueBytes = value.getBytes();
+        return valueBytes;
+    }
 
     boolean if_right(int content)
     {
@@ -65,6 +76,28 @@ public class Condition {
         }
     }
 
+    // compared is the sign of (content - value), e.g. from BufferNode.compareBytesAt
+    boolean if_right_compared(int compared)
+    {
+        switch (operate)
+        {
+            case OPERATION_EQUAL:
+                return compared == 0;
+            case OPERATION_NOT_EQUAL:
+                return compared != 0;
+            case OPERATION_LESS:
+                return compared < 0;
+            case OPERATION_MORE:
+                return compared > 0;
+            case OPERATION_LESS_EQUAL:
+                return compared <= 0;
+            case OPERATION_MORE_EQUAL:
+                return compared >= 0;
+            default:
+                return true;
+        }
+    }
+
     boolean if_right(String content)
     {
         String tmp = value;
@@ -87,3 +120,128 @@ public class Condition {
         }
     }
 }
+
+/*
+** A condition compiled against a table: the column is looked up and the
+** literal parsed once per query, so testing a record needs no name
+** lookups and no parsing.  matches() reads the column straight from the
+** block; recordStart is the position of the record's first column.
+*/
+abstract class CompiledCondition {
+    final Condition cond;
+    final int offset;    // of the column from the start of the record
+
+    CompiledCondition(Condition cond, int offset)
+    {
+        this.cond = cond;
+        this.offset = offset;
+    }
+
+    abstract boolean matches(BufferNode block, int recordStart);
+
+    // Throws NumberFormatException if the literal does not fit the column.
+    // A condition on an attribute the table does not have matches nothing.
+    static CompiledCondition compile(Table table, Condition cond)
+    {
+        int offset = 0;
+        for (Attribute attr : table.attributes) {
+            if (attr.name.equals(cond.attribute_name)) {
+                if (attr.type == -1)
+                    return new IntCondition(cond, offset);
+                else if (attr.type == 0)
+                    return new FloatCondition(cond, offset);
+                else
+                    return new CharCondition(cond, offset, attr.length);
+            }
+            offset += attr.length;
+        }
+        return new CompiledCondition(cond, 0) {
+            boolean matches(BufferNode block, int recordStart) { return false; }
+        };
+    }
+
+    static CompiledCondition[] compile(Table table, List<Condition> conditions)
+    {
+        CompiledCondition[] compiled = new CompiledCondition[conditions.size()];
+        for (int i = 0; i < compiled.length; i++)
+            compiled[i] = compile(table, conditions.get(i));
+        return compiled;
+    }
+
+    static boolean matchAll(CompiledCondition[] conditions, BufferNode block, int recordStart)
+    {
+        for (CompiledCondition cond : conditions)
+            if (!cond.matches(block, recordStart))
+                return false;
+        return true;
+    }
+}
+
+class IntCondition extends CompiledCondition {
+    private final int value;
+
+    IntCondition(Condition cond, int offset)
+    {
+        super(cond, offset);
+        value = Integer.parseInt(cond.value);
+    }
+
+    boolean matches(BufferNode block, int recordStart)
+    {
+        return cond.if_right_compared(Integer.compare(block.getIntAt(recordStart + offset), value));
+    }
+}
+
+// Uses the float operators themselves, not Float.compare, so NaN and -0.0
+// behave as in Condition.if_right(float).
+class FloatCondition extends CompiledCondition {
+    private final float value;
+
+    FloatCondition(Condition cond, int offset)
+    {
+        super(cond, offset);
+        value = Float.parseFloat(cond.value);
+    }
+
+    boolean matches(BufferNode block, int recordStart)
+    {
+        float content = block.getFloatAt(recordStart + offset);
+        switch (cond.operate)
+        {
+            case Condition.OPERATION_EQUAL:
+                return content == value;
+            case Condition.OPERATION_NOT_EQUAL:
+                return content != value;
+            case Condition.OPERATION_LESS:
+                return content < value;
+            case Condition.OPERATION_MORE:
+                return content > value;
+            case Condition.OPERATION_LESS_EQUAL:
+                return content <= value;
+            case Condition.OPERATION_MORE_EQUAL:
+                return content >= value;
+            default:
+                return true;
+        }
+    }
+}
+
+// Compares the stored bytes with the encoded literal, without building a String.
+// Shorter values are stored zero padded, so the literal is padded the same way.
+class CharCondition extends CompiledCondition {
+    private final byte[] value;
+    private final int length;
+
+    CharCondition(Condition cond, int offset, int length)
+    {
+        super(cond, offset);
+        byte[] bytes = cond.getValueBytes();
+        this.value = bytes.length < length ? Arrays.copyOf(bytes, length) : bytes;
+        this.length = length;
+    }
+
+    boolean matches(BufferNode block, int recordStart)
+    {
+        return cond.if_right_compared(block.compareBytesAt(recordStart + offset, length, value));
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+/*
+** Free-space map of a table: one bit per block, set if the block has at
+** least one free record slot.  All records of a table have the same
+** size, so one bit says all an insert needs to know.
+**
+** The map is kept in memory and saved to <table>.fsm at each checkpoint,
+** next to <table>.table.  The file starts with the number of blocks the
+** map covers; if that does not match the table (e.g. the map was not
+** saved before a crash) the caller rebuilds it from the blocks.  A set
+** bit is only a hint: an insert that finds the block full clears it and
+** moves on, so a stale map never causes a wrong insert.
+*/
+class FreeSpaceMap {
+    private final String fileName;
+    private final BitSet free = new BitSet();
+    private volatile boolean dirty = true;    // changed since the last save, or never saved
+
+    FreeSpaceMap(String tableName) {
+        fileName = tableName + ".fsm";
+    }
+
+    // first block with free space, or -1 if every block is full
+    int firstFree() {
+        return free.nextSetBit(0);
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void setFree(int blockOffset, boolean hasSpace) {
+        if (free.get(blockOffset) != hasSpace) {
+            free.set(blockOffset, hasSpace);
+            dirty = true;
+        }
+    }
+
+    // Load the saved map; false if there is none or it covers a different
+    // number of blocks than the table has now.
+    boolean load(int blockNum) {
+        File file = new File(fileName);
+        if (!file.exists())
+            return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != blockNum)
+                return false;
+            byte[] bits = new byte[(int) file.length() - 4];
+            in.readFully(bits);
+            free.clear();
+            free.or(BitSet.valueOf(bits));
+            dirty = false;
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    void save(int blockNum) throws IOException {
+        if (!dirty)
+            return;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            out.writeInt(blockNum);
+            out.write(free.toByteArray());
+        }
+        dirty = false;
+    }
+
+    void delete() {
+        new File(fileName).delete();
+    }
+}
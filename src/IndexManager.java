@@ -1,4 +1,7 @@
 import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 
 /**
  * Created by gyuu on 15/11/5.
@@ -6,55 +9,68 @@ import java.io.*;
 
 public class IndexManager{
 
-    public static BufferManager  buf;
+    private BufferManager  buf; //由 setBM 设置. 不是静态字段, 同一进程中的多个 IndexManager 互不影响
 
     public void setBM(BufferManager bm) {
         buf = bm;
     }
 
-    //找出需要插入的索引值
-    private static byte[] getColumnValue(Table  tableInfo, Index  indexInfo, byte[] row){
-
-        int s_pos = 0, f_pos = 0;
-        for(int i= 0; i <= indexInfo.columnIndex; i++){
-            s_pos = f_pos;
-            //f_pos += tableinfor.attributes.get(i).length; //找出记录中第indexinfo。column列的长度为该列属性长度的字符串
-            f_pos+=tableInfo.attributes.get(i).length;
+    //批量建索引时每块的装填比例, 可用 -Dminisql.index.fillFactor 设置, 范围 (0, 1], 不合法时用默认值
+    private static final double DEFAULT_FILL_FACTOR = 0.9;
+    private static final double FILL_FACTOR = parseFillFactor(System.getProperty("minisql.index.fillFactor"));
+
+    private static double parseFillFactor(String value) {
+        if (value == null)
+            return DEFAULT_FILL_FACTOR;
+        try {
+            double fillFactor = Double.parseDouble(value.trim());
+            if (fillFactor > 0 && fillFactor <= 1)
+                return fillFactor;
         }
-        byte[] colValue=new byte[f_pos-s_pos];
-        for(int j=0;j<f_pos-s_pos;j++){//返回该子字符串，即为需要插入的索引字符串
-            colValue[j]=row[s_pos+j];
+        catch (NumberFormatException e) {
         }
-        return colValue;
+        System.err.println("Index fill factor must be in (0, 1]: " + value + ", using " + DEFAULT_FILL_FACTOR + ".");
+        return DEFAULT_FILL_FACTOR;
     }
 
     //创建索引
+    //先顺序扫描整个表取出 (键值, 块号, 记录位置), 排好序后自底向上一次写出整棵树, 不再逐条插入.
     public void createIndex(Table tableInfo,Index indexInfo) throws IOException { //需要API提供表和索引信息结构
 
         BPlusTree thisTree=new BPlusTree(indexInfo, buf); //创建一棵新树
+        KeySorter sorter=new KeySorter(thisTree, indexInfo.columnLength);
 
         //开始正式建立索引
         String filename=tableInfo.name+".table";
+        buf.beginScan(filename); //按块号顺序扫描整个表, 让缓冲区预读
         try{
+            BufferNode block = null;
             for(int blockOffset=0; blockOffset< tableInfo.blockNum; blockOffset++){
-                BufferNode block = buf.getBufferNode(filename, blockOffset);
-
-                int recordNum = 0; // 每个块的头两个字节存储该块中的记录数量(不包括被删除的).
-                recordNum += (block.data[2] & 0xFF) << 8;
-                recordNum += (block.data[3] & 0xFF);
-
-                for(int offset =0; offset < recordNum /*tableInfo.maxPerRecordNum*/; offset++){
-                    // 每条记录存储时,数据前面留 1 个字节,后面附加 2 个字节有其他用处.因此每条记录实际占 totalLength+3 字节.
-                    int position = 4 + offset * (tableInfo.totalLength + 3);
-                    // 每条记录第 1 个个字节如果为 0, 表示已被删除, 如果为 1, 表示可用数据.
-                    int notDeleted = (block.data[position] & 0xFF);
-                    if (notDeleted == 0)
-                        continue;
-                    byte[] Record = block.getBytes(position+1, tableInfo.totalLength); //读取表中的每条记录
-                    byte[] key= getColumnValue(tableInfo,indexInfo,Record); //找出索引值
-                    thisTree.insert(key, blockOffset, offset); //插入树中
+                block = buf.pinBufferNodeForRead(filename, blockOffset, block); //mmap 读时重用同一个视图
+
+                try{
+                    int recordNum = 0; // 每个块的头两个字节存储该块中的记录数量(不包括被删除的).
+                    recordNum += (block.getByte(2) & 0xFF) << 8;
+                    recordNum += (block.getByte(3) & 0xFF);
+
+                    // 被删除的记录留下空位, 所以要一直扫到找齐 recordNum 条可用的记录为止.
+                    for(int offset =0, found =0; found < recordNum; offset++){
+                        // 每条记录存储时,数据前面留 1 个字节,后面附加 2 个字节有其他用处.因此每条记录实际占 totalLength+3 字节.
+                        int position = 4 + offset * (tableInfo.totalLength + 3);
+                        // 每条记录第 1 个个字节如果为 0, 表示已被删除, 如果为 1, 表示可用数据.
+                        int notDeleted = (block.getByte(position) & 0xFF);
+                        if (notDeleted == 0)
+                            continue;
+                        found++;
+                        byte[] key= block.getBytes(position+1+indexInfo.pos, indexInfo.columnLength); //直接从块中取出索引值, 不复制整条记录
+                        sorter.add(key, blockOffset, position); //和插入记录时一样, 存记录在块中的字节位置
+                    }
+                }finally{
+                    block.unpin(); //出错时也要放开, 否则这一块永远占着缓冲区
                 }
             }
+            sorter.finish();
+            indexInfo.rootBlockOffset=thisTree.bulkLoad(sorter, FILL_FACTOR);
         }catch(NullPointerException e){
             System.err.println("must not be null for key.");
         }
@@ -62,8 +78,11 @@ public class IndexManager{
             System.err.println("the index has not been created.");
             System.err.println(e);
         }
+        finally{
+            buf.endScan(filename);
+            sorter.close();
+        }
 
-        indexInfo.rootBlockOffset=thisTree.myRootBlock.blockOffset;
 //        CatalogManager.setIndexRoot(indexInfo.indexName, thisTree.myRootBlock.blockOffset);
 
         buf.WriteAllToFile();
@@ -74,6 +93,7 @@ public class IndexManager{
     //删除索引，即删除索引文件
     public void dropIndex(String filename ){
         filename+=".index";
+        buf.setInvalid(filename);  //将buf中所有与此索引相关的缓冲块都置为无效, 并关闭文件句柄
         File file = new File(filename);
 
         try{
@@ -87,8 +107,6 @@ public class IndexManager{
             System.out.println("删除索引失败！");
         }
 
-        buf.setInvalid(filename);  //将buf中所有与此索引相关的缓冲块都置为无效
-
         System.out.println("删除索引成功！");
     }
 
@@ -106,12 +124,34 @@ public class IndexManager{
         }
     }
 
-    /*
-        public List<offsetInfo> searchBetween(Index indexInfo, String firstKey,String lastKey){
-            List<offsetInfo> offlist=null;
-            return null;
+    //批量唯一性检查: keys 中有键值重复, 或有键值已在索引中时返回 true.
+    //先按键值排序, 重复的键值必然相邻; 再用同一个树访问结构按序查找, 相邻的查找走同一条路径, 用到的块多半还在缓冲区中.
+    public boolean containsAnyKey(Index indexInfo, byte[][] keys) throws Exception{
+        try{
+            final BPlusTree thisTree=new BPlusTree(indexInfo,buf,indexInfo.rootBlockOffset); //创建树访问结构（但不是新树）
+            byte[][] sorted=keys.clone();
+            Arrays.sort(sorted, new Comparator<byte[]>(){
+                public int compare(byte[] a, byte[] b){
+                    return thisTree.compareKeys(a, b);
+                }
+            });
+            for(int i=0;i<sorted.length;i++){
+                if(i>0 && thisTree.compareKeys(sorted[i-1], sorted[i])==0) return true;   //批内重复
+                if(thisTree.searchKey(sorted[i])!=null) return true;    //索引中已有
+            }
+            return false;
+        }catch(NullPointerException e){
+            System.err.println();
+            return false;
         }
-    */
+    }
+
+    //范围查找: 按键值从小到大给出 firstKey <= 键值 <= lastKey 的记录位置, firstKey/lastKey 为 null 表示不限
+    public Iterator<offsetInfo> searchBetween(Index indexInfo, byte[] firstKey, byte[] lastKey){
+        BPlusTree thisTree=new BPlusTree(indexInfo,buf,indexInfo.rootBlockOffset); //创建树访问结构（但不是新树）
+        return thisTree.searchRange(firstKey, lastKey);
+    }
+
     //插入新索引值，已有索引则更新位置信息
     public void insertKey(Index indexInfo,byte[] key,int blockOffset,int offset) throws Exception{
         try{
@@ -126,6 +166,28 @@ public class IndexManager{
 
     }
 
+    //批量插入索引值: keys[i] 对应记录位置 (blockOffsets[i], offsets[i]).
+    //先按键值排序再依次插入, 相邻的插入走同一条路径, 用到的块多半还在缓冲区中; 整批只建一次树访问结构.
+    public void insertKeys(Index indexInfo, final byte[][] keys, int[] blockOffsets, int[] offsets) throws Exception{
+        try{
+            final BPlusTree thisTree=new BPlusTree(indexInfo,buf,indexInfo.rootBlockOffset);//创建树访问结构（但不是新树）
+            Integer[] order=new Integer[keys.length];
+            for(int i=0;i<keys.length;i++)
+                order[i]=i;
+            Arrays.sort(order, new Comparator<Integer>(){
+                public int compare(Integer a, Integer b){
+                    return thisTree.compareKeys(keys[a], keys[b]);
+                }
+            });
+            for(int i : order)
+                thisTree.insert(keys[i], blockOffsets[i], offsets[i]);	//插入
+            if(thisTree.myRootBlock!=null)
+                indexInfo.rootBlockOffset=thisTree.myRootBlock.blockOffset;//设置根块
+        }catch(NullPointerException e){
+            System.err.println();
+        }
+    }
+
     //删除索引值，没有该索引则什么也不做
     public void deleteKey(Index indexInfo,byte[] deleteKey) throws Exception{
         try{
@@ -1,4 +1,5 @@
 import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,6 +14,11 @@ public class Interpreter
     private static IndexManager im;
     private static CatalogManager cm;
     private static RecordManager rm;
+    private static Checkpointer checkpointer;
+
+    // -Dminisql.flush=statement 时每条语句执行后都保存目录并写回脏块(旧的行为),
+    // 否则由检查点线程按 -Dminisql.checkpoint.interval(毫秒) 和 -Dminisql.checkpoint.dirtyRatio 写回.
+    private static boolean flushEveryStatement;
 
     public static String scriptName;
 
@@ -238,7 +244,13 @@ public class Interpreter
             {
                 while (!word.equals("from"))
                 {
-                    attr_selected.add(word);
+                    if (word.isEmpty())
+                    {
+                        System.out.println("Syntax Error!");
+                        return 0;
+                    }
+                    if (!word.equals(","))
+                        attr_selected.add(word);
                     word = get_word(s);
                 }
             }
@@ -263,7 +275,7 @@ public class Interpreter
             word = get_word(s);
             if (word.isEmpty())
             {
-                rm.selectRecord(table_name);
+                rm.selectRecord(table_name, attr_selected, new ArrayList<Condition>());
 
                 if (attr_selected.size() == 0)
                     System.out.println("Show Record!");
@@ -317,7 +329,7 @@ public class Interpreter
                     }
                 }
 
-                rm.selectRecord(table_name, condition_list);
+                rm.selectRecord(table_name, attr_selected, condition_list);
                 if (attr_selected.size() == 0)
                     System.out.println("Selected!");
                 else
@@ -458,7 +470,7 @@ public class Interpreter
         else if (word.equals("insert"))
         {
             String table_name = "";
-            List<String> value_list = new ArrayList<String>();
+            List<List<String>> rows = new ArrayList<List<String>>();
             word = get_word(s);
             try{
                 if (!word.equals("into"))
@@ -470,25 +482,77 @@ public class Interpreter
                 word = get_word(s);
                 if (!word.equals("values"))
                     throw new SyntaxException();
-                word = get_word(s);
-                if (!word.equals("("))
-                    throw new SyntaxException();
-                word = get_word(s);
-                while (!word.isEmpty() && !word.equals(")"))
+                // insert into t values (...), (...), ...
+                do
                 {
-                    value_list.add(word);
                     word = get_word(s);
-                    if (word.equals(","))
+                    if (!word.equals("("))
+                        throw new SyntaxException();
+                    List<String> value_list = new ArrayList<String>();
+                    word = get_word(s);
+                    while (!word.isEmpty() && !word.equals(")"))
+                    {
+                        value_list.add(word);
                         word = get_word(s);
-                }
-                if (!word.equals(")"))
+                        if (word.equals(","))
+                            word = get_word(s);
+                    }
+                    if (!word.equals(")"))
+                        throw new SyntaxException();
+                    rows.add(value_list);
+                    word = get_word(s);
+                } while (word.equals(","));
+                if (!word.isEmpty())
                     throw new SyntaxException();
             } catch (SyntaxException e) {
                 System.out.println("Syntax Error!");
                 return 0;
             }
-            rm.insertRecord(table_name, value_list);
-            System.out.println("Record inserted!");
+            if (rows.size() == 1)
+            {
+                rm.insertRecord(table_name, rows.get(0));
+                System.out.println("Record inserted!");
+            }
+            else
+                System.out.println(rm.insertBatch(table_name, rows) + " records inserted!");
+            return 1;
+        }
+
+        else if (word.equals("load"))
+        {
+            // load data from 'file.csv' into t
+            String file_name, table_name;
+            try{
+                if (!get_word(s).equals("data") || !get_word(s).equals("from"))
+                    throw new SyntaxException();
+                file_name = get_word(s);
+                if (file_name.isEmpty() || !get_word(s).equals("into"))
+                    throw new SyntaxException();
+                table_name = get_word(s);
+                if (table_name.isEmpty() || !get_word(s).isEmpty())
+                    throw new SyntaxException();
+            } catch (SyntaxException e) {
+                System.out.println("Syntax Error!");
+                return 0;
+            }
+            try{
+                System.out.println(rm.loadData(table_name, file_name) + " records loaded!");
+            } catch (FileNotFoundException e) {
+                System.out.println("Error: cannot open " + file_name);
+                return 0;
+            }
+            return 1;
+        }
+
+        else if (word.equals("show"))
+        {
+            // show buffer stats: 打印缓冲区命中率、读写次数和延迟
+            if (!get_word(s).equals("buffer") || !get_word(s).equals("stats") || !get_word(s).isEmpty())
+            {
+                System.out.println("Syntax Error!");
+                return 0;
+            }
+            bm.getStats().print();
             return 1;
         }
 
@@ -559,15 +623,23 @@ public class Interpreter
     }
 
     public static void main(String[] args) throws IOException {
-        bm = new BufferManager();
+        cm = new CatalogManager();    // 先读目录, 块大小和缓冲块数记录在目录中
+        bm = new BufferManager(cm.getBufferSize(), cm.getBlockSize());
+        bm.getStats().registerMBean();
         im = new IndexManager();
-        cm = new CatalogManager();
         rm = new RecordManager();
 
         im.setBM(bm);
         cm.setIMRM(im, rm);
         rm.setBMCMIM(bm, cm, im);
 
+        flushEveryStatement = System.getProperty("minisql.flush", "checkpoint").equals("statement");
+        long interval = Checkpointer.parseInterval(System.getProperty("minisql.checkpoint.interval"));
+        double dirtyRatio = Checkpointer.parseDirtyRatio(System.getProperty("minisql.checkpoint.dirtyRatio"));
+        checkpointer = new Checkpointer(bm, cm, rm, interval, dirtyRatio);
+        if (!flushEveryStatement)
+            checkpointer.start();
+
         System.out.println("Welcome to MiniSQL!");
         Scanner in = new Scanner(System.in);
         String quest = "",tmp_quest="";
@@ -578,6 +650,10 @@ public class Interpreter
             tmp_quest = "";
             pos = 0;
             int return_code = 0;
+            if (!in.hasNextLine()) {    // 输入结束时也要做最后一次检查点, 否则最近的修改会丢失
+                checkpointer.shutdown();
+                return;
+            }
             tmp_quest = in.nextLine();
             while (tmp_quest.charAt(tmp_quest.length() - 1) != ';') {
                 quest = quest + " " + tmp_quest;
@@ -586,16 +662,21 @@ public class Interpreter
             quest = quest + " " + tmp_quest;
             quest = quest.substring(0,quest.length()-1);
             try {
-                return_code = interprete(quest);
+                synchronized (bm) {
+                    return_code = interprete(quest);
+                }
             } catch (SQLException e) {
                 e.DetailedErrorMessage();
             } catch (Exception e) {
                 e.printStackTrace();
             } finally {
-                cm.close();
-                bm.WriteAllToFile();
+                if (flushEveryStatement)
+                    checkpointer.checkpoint();
             }
+            if (return_code == 2)
+                System.out.println("Committed, " + checkpointer.checkpoint() + " blocks written.");
             if (return_code == -1){
+                checkpointer.shutdown();
                 System.out.println("Bye");
                 return;
             }
@@ -603,20 +684,29 @@ public class Interpreter
                 FileReader f = new FileReader(scriptName);
                 BufferedReader bf = new BufferedReader(f);
                 while ((tmp_quest = bf.readLine()) != null) {
+                    // 每条语句单独解析, 不再把整个脚本拼接到同一个字符串里.
+                    quest = "";
+                    pos = 0;
                     while (tmp_quest.charAt(tmp_quest.length() - 1) != ';') {
+                        quest = quest + " " + tmp_quest;
                         tmp_quest = bf.readLine();
                     }
                     quest = quest + " " + tmp_quest;
                     quest = quest.substring(0,quest.length()-1);
                     try {
-                        return_code = interprete(quest);
+                        synchronized (bm) {
+                            return_code = interprete(quest);
+                        }
                     } catch (Exception e) {
                         e.printStackTrace();
                     } finally {
-                        cm.close();
-                        bm.WriteAllToFile();
+                        if (flushEveryStatement)
+                            checkpointer.checkpoint();
                     }
+                    if (return_code == 2)
+                        System.out.println("Committed, " + checkpointer.checkpoint() + " blocks written.");
                     if (return_code == -1){
+                        checkpointer.shutdown();
                         System.out.println("Bye");
                         return;
                     }
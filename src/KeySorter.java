@@ -0,0 +1,210 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+//建索引用的排序器: 收集 (键值, 块号, 记录位置), 按树中的键序排好后用 next() 依次取出.
+//内存中攒够 runEntries 项就排好序写到临时文件, finish 时把这些段多路归并成一个文件, 所以表再大也不会占满内存.
+//键值相同的项只留最后加入的一项, 与逐条插入时后插入的覆盖先插入的一致.
+class KeySorter {
+    private static final int RUN_BYTES = 32 << 20;  //内存中一段大约占用的字节数
+    private static final int INITIAL_ENTRIES = 1024;  //数组的初始项数
+
+    private final BPlusTree tree;  //只用它来比较键值
+    private final int keyLength;
+    private final int runEntries;
+
+    private byte[][] keys;
+    private int[] blockOffsets, offsets;
+    private int count=0;  //内存中的项数
+    private final ArrayList<File> runs=new ArrayList<File>();
+    private long total=0;  //去重后的总项数, finish 之后有效
+
+    //读出阶段: 全在内存中时按 order 读, 否则读归并后的文件
+    private int[] order;
+    private int next=0;
+    private DataInputStream in;
+
+    //next() 取出的当前项
+    byte[] key;
+    int blockOffset, offset;
+
+    KeySorter(BPlusTree tree, int keyLength){
+        this.tree=tree;
+        this.keyLength=keyLength;
+        runEntries=Math.max(1024, Math.min(1 << 20, RUN_BYTES/(keyLength+48)));  //每项还有数组和对象头的开销
+        keys=new byte[INITIAL_ENTRIES][];  //小表用不了多少项, 数组按需倍增到 runEntries
+        blockOffsets=new int[INITIAL_ENTRIES];
+        offsets=new int[INITIAL_ENTRIES];
+    }
+
+    void add(byte[] key, int blockOffset, int offset) throws IOException {
+        if(count==runEntries)
+            spill();
+        else if(count==keys.length){
+            int capacity=Math.min(runEntries, keys.length*2);
+            keys=Arrays.copyOf(keys, capacity);
+            blockOffsets=Arrays.copyOf(blockOffsets, capacity);
+            offsets=Arrays.copyOf(offsets, capacity);
+        }
+        keys[count]=key;
+        blockOffsets[count]=blockOffset;
+        offsets[count]=offset;
+        count++;
+    }
+
+    long size(){
+        return total;
+    }
+
+    //内存中的项排序去重, 返回留下的项的下标
+    private int[] sortRun(){
+        Integer[] idx=new Integer[count];
+        for(int i=0;i<count;i++)
+            idx[i]=i;
+        Arrays.sort(idx, new Comparator<Integer>(){  //稳定排序, 相同键值保持加入的先后
+            public int compare(Integer a, Integer b){
+                return tree.compareKeys(keys[a], keys[b]);
+            }
+        });
+        int[] kept=new int[count];
+        int n=0;
+        for(int i=0;i<count;i++){
+            if(i+1<count && tree.compareKeys(keys[idx[i]], keys[idx[i+1]])==0) continue;  //后面还有相同键值
+            kept[n++]=idx[i];
+        }
+        return Arrays.copyOf(kept, n);
+    }
+
+    private void spill() throws IOException {
+        File run=File.createTempFile("minisql", ".run");
+        run.deleteOnExit();
+        runs.add(run);
+        DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+        try{
+            for(int i : sortRun())
+                write(out, keys[i], blockOffsets[i], offsets[i]);
+        }finally{
+            out.close();
+        }
+        Arrays.fill(keys, null);
+        count=0;
+    }
+
+    private void write(DataOutputStream out, byte[] key, int blockOffset, int offset) throws IOException {
+        out.write(key);
+        out.writeInt(blockOffset);
+        out.writeInt(offset);
+    }
+
+    //一个临时文件段的读取位置
+    private class Run {
+        final int id;  //段的先后, 相同键值时后面的段更新
+        final DataInputStream in;
+        long left;
+        byte[] key=new byte[keyLength];
+        int blockOffset, offset;
+
+        Run(int id, File file) throws IOException {
+            this.id=id;
+            in=new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            left=file.length()/(keyLength+8);
+        }
+
+        boolean advance() throws IOException {
+            if(left==0) return false;
+            left--;
+            key=new byte[keyLength];
+            in.readFully(key);
+            blockOffset=in.readInt();
+            offset=in.readInt();
+            return true;
+        }
+    }
+
+    //不再加入新项, 准备读出
+    void finish() throws IOException {
+        if(runs.isEmpty()){
+            order=sortRun();
+            total=order.length;
+            return;
+        }
+        if(count>0)
+            spill();
+        keys=null;
+
+        //多路归并所有段, 去重后写到一个文件
+        PriorityQueue<Run> heads=new PriorityQueue<Run>(runs.size(), new Comparator<Run>(){
+            public int compare(Run a, Run b){
+                int c=tree.compareKeys(a.key, b.key);
+                return c!=0 ? c : Integer.compare(a.id, b.id);
+            }
+        });
+        ArrayList<Run> readers=new ArrayList<Run>();
+        File merged=File.createTempFile("minisql", ".run");
+        merged.deleteOnExit();
+        DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 1 << 16));
+        try{
+            for(int i=0;i<runs.size();i++){
+                Run run=new Run(i, runs.get(i));
+                readers.add(run);
+                if(run.advance()) heads.add(run);
+            }
+            byte[] pendingKey=null;  //上一项, 遇到不同的键值时才写出
+            int pendingBlock=0, pendingOffset=0;
+            while(!heads.isEmpty()){
+                Run run=heads.poll();
+                if(pendingKey!=null && tree.compareKeys(pendingKey, run.key)!=0){
+                    write(out, pendingKey, pendingBlock, pendingOffset);
+                    total++;
+                }
+                pendingKey=run.key;
+                pendingBlock=run.blockOffset;
+                pendingOffset=run.offset;
+                if(run.advance()) heads.add(run);
+            }
+            if(pendingKey!=null){
+                write(out, pendingKey, pendingBlock, pendingOffset);
+                total++;
+            }
+        }finally{
+            out.close();
+            for(Run run : readers)
+                run.in.close();
+        }
+        for(File run : runs)
+            run.delete();
+        runs.clear();
+        runs.add(merged);
+        in=new DataInputStream(new BufferedInputStream(new FileInputStream(merged), 1 << 16));
+    }
+
+    //取出下一项到 key/blockOffset/offset
+    void next() throws IOException {
+        if(in==null){
+            int i=order[next++];
+            key=keys[i];
+            blockOffset=blockOffsets[i];
+            offset=offsets[i];
+        }
+        else{
+            key=new byte[keyLength];
+            in.readFully(key);
+            blockOffset=in.readInt();
+            offset=in.readInt();
+        }
+    }
+
+    //删除临时文件
+    void close(){
+        try{
+            if(in!=null) in.close();
+        }catch(IOException e){
+            System.err.println(e);
+        }
+        for(File run : runs)
+            run.delete();
+        runs.clear();
+    }
+}
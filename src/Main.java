@@ -122,20 +122,12 @@ class Index {
     }
 }
 
-class Data {
-    public ArrayList<Row> rows;
-
-    public Data() {
-        rows = new ArrayList<Row>();
-    }
-
-    public void add(Row row) {
-        rows.add(row);
-    }
-
-    public boolean isEmpty() {
-        return rows.isEmpty();
-    }
+// Pull-based stream of result rows: next() returns null when there are
+// no more rows.  close() releases whatever the cursor still holds.
+interface Cursor {
+    Row next();
+    void close();
+    String[] getColumnNames();    // names of the columns in each row
 }
 
 class Row {
@@ -2,7 +2,15 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 
 public class RecordManager {
@@ -12,10 +20,32 @@ public class RecordManager {
     private static final short NEXT_RECORD = 0;
     private static final int NOT_EMPTY = 1;
     private static final int EMPTY = 0;
+    private static final int LOAD_BATCH_SIZE = 10000;    // rows per insertBatch in loadData
+    private static final int SCAN_RANGE_BLOCKS = 64;     // blocks per task of a parallel scan
+    private static final int PARALLEL_SCAN_MIN_BLOCKS = 4 * SCAN_RANGE_BLOCKS;    // smaller tables are scanned serially
+    private static final int SCAN_PARALLELISM = parseScanParallelism(System.getProperty("minisql.scan.parallelism"));
+    private static final ForkJoinPool SCAN_POOL = SCAN_PARALLELISM > 1 ? new ForkJoinPool(SCAN_PARALLELISM) : null;
 
     private BufferManager bm;
     private CatalogManager cm;
     private IndexManager im;
+    private HashMap<String, FreeSpaceMap> freeSpaceMaps = new HashMap<String, FreeSpaceMap>();    // by table name, loaded on first use
+
+    // -Dminisql.scan.parallelism, else one thread per processor; a bad value falls back to the default
+    private static int parseScanParallelism(String value) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (value == null)
+            return processors;
+        try {
+            int parallelism = Integer.parseInt(value.trim());
+            if (parallelism >= 1)
+                return parallelism;
+        }
+        catch (NumberFormatException e) {
+        }
+        System.err.println("Scan parallelism must be a positive integer: " + value + ", using " + processors + ".");
+        return processors;
+    }
 
     public void setBMCMIM(BufferManager bm, CatalogManager cm, IndexManager im) {
         this.bm = bm;
@@ -40,31 +70,31 @@ public class RecordManager {
     ** If the next pointer of a record is 0 (NEXT_RECORD), its next available
     ** record is exactly the next record bytes on the disk.
     */
-    private int getInsertIndex(byte[] block) {
-        return ((block[0] & 0xFF) << 8) + (block[1] & 0xFF);
+    private int getInsertIndex(BufferNode block) {
+        return ((block.getByte(0) & 0xFF) << 8) + (block.getByte(1) & 0xFF);
     }
 
-    private int getNextInsertIndex(byte[] block, Table table, int recordIndex) {
+    private int getNextInsertIndex(BufferNode block, Table table, int recordIndex) {
         int offset = getPositionFromIndex(table, recordIndex) + table.totalLength + 1;
-        int nextIndex = ((block[offset] & 0xFF) << 8) + (block[offset + 1] & 0xFF);
+        int nextIndex = ((block.getByte(offset) & 0xFF) << 8) + (block.getByte(offset + 1) & 0xFF);
         if (nextIndex == NEXT_RECORD)
             return recordIndex + 1;
         else
             return nextIndex;
     }
 
-    private void setInsertIndex(byte[] block, int insertIndex) {
-        block[0] = (byte) (insertIndex >> 8);
-        block[1] = (byte) insertIndex;
+    private void setInsertIndex(BufferNode block, int insertIndex) {
+        block.setByte(0, (byte) (insertIndex >> 8));
+        block.setByte(1, (byte) insertIndex);
     }
 
-    private void setNextInsertIndex(byte[] block, Table table, int recordIndex, int nextIndex) {
+    private void setNextInsertIndex(BufferNode block, Table table, int recordIndex, int nextIndex) {
         if (recordIndex == -1)    // set the insert index for the whole block
             setInsertIndex(block, nextIndex);
         else {
             int offset = getPositionFromIndex(table, recordIndex) + table.totalLength + 1;
-            block[offset] = (byte) (nextIndex >> 8);
-            block[offset + 1] = (byte) nextIndex;
+            block.setByte(offset, (byte) (nextIndex >> 8));
+            block.setByte(offset + 1, (byte) nextIndex);
         }
     }
 
@@ -73,22 +103,74 @@ public class RecordManager {
         return HEADER_SIZE + recordIndex * (table.totalLength + POINTER_SIZE);
     }
 
-    private int getRecordNum(byte[] block) {
-        return ((block[2] & 0xFF) << 8) + (block[3] & 0xFF);
+    private int getRecordNum(BufferNode block) {
+        return ((block.getByte(2) & 0xFF) << 8) + (block.getByte(3) & 0xFF);
     }
 
-    private void incRecordNum(byte[] block) {    // increase record number by 1
+    private void incRecordNum(BufferNode block) {    // increase record number by 1
         int recordNum = getRecordNum(block);
         recordNum++;
-        block[2] = (byte) (recordNum >> 8);
-        block[3] = (byte) recordNum;
+        block.setByte(2, (byte) (recordNum >> 8));
+        block.setByte(3, (byte) recordNum);
     }
 
-    private void decRecordNum(byte[] block) {    // decrease record number by 1
+    private void decRecordNum(BufferNode block) {    // decrease record number by 1
         int recordNum = getRecordNum(block);
         recordNum--;
-        block[2] = (byte) (recordNum >> 8);
-        block[3] = (byte) recordNum;
+        block.setByte(2, (byte) (recordNum >> 8));
+        block.setByte(3, (byte) recordNum);
+    }
+
+    private boolean hasFreeSlot(Table table, BufferNode block) {
+        return getPositionFromIndex(table, getInsertIndex(block)) + table.totalLength + POINTER_SIZE
+            <= bm.blockSize;
+    }
+
+    /*
+    ** The free-space map of the table.  It is loaded from the table's .fsm
+    ** file the first time the table is used, or rebuilt from the block
+    ** headers if the file is missing or does not match the table.
+    */
+    private FreeSpaceMap getFreeSpaceMap(Table table) {
+        FreeSpaceMap fsm = freeSpaceMaps.get(table.name);
+        if (fsm != null)
+            return fsm;
+
+        fsm = new FreeSpaceMap(table.name);
+        if (!fsm.load(table.blockNum)) {
+            String filename = table.name + ".table";
+            bm.beginScan(filename);
+            try {
+                for (int blockOffset = 0; blockOffset < table.blockNum; blockOffset++) {
+                    BufferNode bn = bm.pinBufferNode(filename, blockOffset);
+                    fsm.setFree(blockOffset, hasFreeSlot(table, bn));
+                    bn.unpin();
+                }
+            }
+            finally {
+                bm.endScan(filename);
+            }
+        }
+        freeSpaceMaps.put(table.name, fsm);
+        return fsm;
+    }
+
+    // Whether some free-space map has changed since it was last saved.
+    public boolean hasUnsavedFreeSpaceMaps() {
+        for (FreeSpaceMap fsm : freeSpaceMaps.values())
+            if (fsm.isDirty())
+                return true;
+        return false;
+    }
+
+    // Save the free-space maps changed since the last save; called at
+    // each checkpoint.
+    public void saveFreeSpaceMaps() throws IOException {
+        for (String tableName : freeSpaceMaps.keySet()) {
+            Table table = cm.getTable(tableName);
+            if (table != null)
+                freeSpaceMaps.get(tableName).save(table.blockNum);
+        }
     }
 
     private final byte[] getColumnBytes(String column, Attribute attr)
@@ -112,7 +194,10 @@ public class RecordManager {
             }
         }
         else {    // char
-            return column.getBytes();
+            byte[] bytes = column.getBytes();
+            if (bytes.length > attr.length)
+                throw new AttributeFormatException(attr.name, attr.type, column);
+            return bytes;
         }
     }
 
@@ -125,103 +210,168 @@ public class RecordManager {
         for (int i = 0; i < table.attributes.size(); i++) {
             byte[] columnBytes = getColumnBytes(row.get(i), table.attributes.get(i));
             System.arraycopy(columnBytes, 0, bytesToInsert, index, columnBytes.length);
-            index += columnBytes.length;
+            index += table.attributes.get(i).length;    // shorter chars are zero padded
         }
         return bytesToInsert;
     }
 
     public void insertRecord(String tableName, List<String> row)
+        throws TableNotFoundException, UniqueKeyException, Exception {
+        List<List<String>> rows = new ArrayList<List<String>>(1);
+        rows.add(row);
+        insertBatch(tableName, rows);
+    }
+
+    /*
+    ** Insert several rows with one catalog lookup.  All rows are encoded
+    ** and checked against the indices, and against each other, before
+    ** anything is written, so a bad row leaves the table unchanged.
+    ** The rows then fill free slots block by block, each block pinned
+    ** once, and the index entries of the whole batch are inserted in key
+    ** order.  Returns the number of rows inserted.
+    */
+    public int insertBatch(String tableName, List<List<String>> rows)
         throws TableNotFoundException, UniqueKeyException, Exception {
         Table table = cm.getTable(tableName);
         if (table == null)
             throw new TableNotFoundException(tableName);
 
-        byte[] bytesToInsert = getInsertBytes(table, row);
+        byte[][] records = new byte[rows.size()][];
+        for (int i = 0; i < records.length; i++)
+            records[i] = getInsertBytes(table, rows.get(i));
 
         // check uniqueness
         ArrayList<Index> allTableIndices = cm.getAllIndicesOfTable(tableName);
-        for (Index idx : allTableIndices) {
-            byte[] key = Arrays.copyOfRange(bytesToInsert, idx.pos, idx.pos + idx.columnLength);
-            if (im.searchEqual(idx, key) != null)
+        byte[][][] keys = new byte[allTableIndices.size()][records.length][];
+        for (int j = 0; j < allTableIndices.size(); j++) {
+            Index idx = allTableIndices.get(j);
+            for (int i = 0; i < records.length; i++)
+                keys[j][i] = Arrays.copyOfRange(records[i], idx.pos, idx.pos + idx.columnLength);
+            if (im.containsAnyKey(idx, keys[j]))    // one sorted pass over one tree
                 throw new UniqueKeyException(idx.indexName);
         }
 
         // Use free list for insertion and deletion
         int recordSize = table.totalLength + POINTER_SIZE;
-
-        while (true) {
-            //BufferNode bn = bm.getIfIsInBuffer(table.name + ".table", table.nextInsertBlock);
-            BufferNode bn = bm.getBufferNode(table.name + ".table", table.nextInsertBlock);
-            byte[] block = bn.data;
-            int insertIndex = getInsertIndex(block);
-            int pos = getPositionFromIndex(table, insertIndex);
-
-            // No free space, get a new block
-            if (pos + recordSize > BufferManager.BLOCK_SIZE) {
-                table.nextInsertBlock++;
-                if (table.nextInsertBlock >= table.blockNum)
-                    bm.addBlockInFile(table);
-                continue;
+        int[] blockOffsets = new int[records.length];
+        int[] positions = new int[records.length];
+        int inserted = 0;
+
+        FreeSpaceMap fsm = getFreeSpaceMap(table);
+        while (inserted < records.length) {
+            int blockOffset = fsm.firstFree();
+            if (blockOffset < 0) {    // every block is full, get a new block
+                blockOffset = table.blockNum;
+                bm.addBlockInFile(table);
             }
-
-            // Write to buffer
-            block[pos] = NOT_EMPTY;
-            System.arraycopy(bytesToInsert, 0, block, pos + 1, table.totalLength);
-
-            // Modify available insert index value and increase record number
-            int nextIndex = getNextInsertIndex(block, table, insertIndex);
-            setInsertIndex(block, nextIndex);
-            incRecordNum(block);
-
-            // Update index
-            for (Attribute attr : table.attributes) {
-                if (!attr.index.equals("")) {    // has index
-                    Index idx = cm.getIndex(attr.index);
-                    byte[] key = Arrays.copyOfRange(bytesToInsert,
-                                                    idx.pos, idx.pos + idx.columnLength);
-                    im.insertKey(idx, key, table.nextInsertBlock, pos);
+            BufferNode bn = bm.pinBufferNode(table.name + ".table", blockOffset);
+            try {
+                while (inserted < records.length) {
+                    int insertIndex = getInsertIndex(bn);
+                    int pos = getPositionFromIndex(table, insertIndex);
+                    if (pos + recordSize > bm.blockSize)    // no free space
+                        break;
+
+                    // Write to buffer
+                    bn.setByte(pos, (byte) NOT_EMPTY);
+                    bn.setBytes(pos + 1, records[inserted]);
+
+                    // Modify available insert index value and increase record number
+                    int nextIndex = getNextInsertIndex(bn, table, insertIndex);
+                    setInsertIndex(bn, nextIndex);
+                    incRecordNum(bn);
+                    bn.setWritten(true);
+
+                    blockOffsets[inserted] = blockOffset;
+                    positions[inserted] = pos;
+                    inserted++;
                 }
+                fsm.setFree(blockOffset, hasFreeSlot(table, bn));
+            }
+            finally {
+                bn.unpin();
             }
-
-            bn.isWritten = true;
-            return;
         }
-    }
 
-    private boolean matchAllCond(Table table, byte[] bytes, List<Condition> conditions) {
-        for (Condition cond : conditions)
-            if (!matchCondition(table, bytes, cond))
-                // don't match any one of conditions
-                return false;
+        // Update index
+        for (int j = 0; j < allTableIndices.size(); j++)
+            im.insertKeys(allTableIndices.get(j), keys[j], blockOffsets, positions);
 
-        return true;
+        return inserted;
     }
 
-    private boolean matchCondition(Table table, byte[] bytes, Condition cond) {
-        int columnStart = 0;
-        for (Attribute attr : table.attributes) {
-            if (cond.attribute_name.equals(attr.name)) {
-                if (attr.type == -1) {
-                    byte[] column = Arrays.copyOfRange(bytes, columnStart, columnStart + 4);
-                    int value = ByteBuffer.wrap(column).getInt();
-                    return cond.if_right(value);
-                }
-                else if (attr.type == 0) {
-                    byte[] column = Arrays.copyOfRange(bytes, columnStart, columnStart + 4);
-                    float value = ByteBuffer.wrap(column).getFloat();
-                    return cond.if_right(value);
-                }
-                else {
-                    byte[] column = Arrays.copyOfRange(bytes, columnStart,
-                                                       columnStart + attr.length);
-                    String value = new String(column);
-                    return cond.if_right(value);
+    /*
+    ** Load a CSV file into the table: one row per line, fields separated
+    ** by commas.  A field may be quoted with double quotes, and "" inside
+    ** quotes stands for one quote; unquoted fields are trimmed.  The file
+    ** is streamed and inserted LOAD_BATCH_SIZE rows at a time through
+    ** insertBatch, so rows go straight into the blocks and the index
+    ** entries of each batch are added in key order after its rows are
+    ** written.  A bad row stops the load; the batches before it stay in
+    ** the table.  Returns the number of rows loaded.
+    */
+    public int loadData(String tableName, String fileName)
+        throws TableNotFoundException, IOException, Exception {
+        if (cm.getTable(tableName) == null)
+            throw new TableNotFoundException(tableName);
+
+        int loaded = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            List<List<String>> rows = new ArrayList<List<String>>(LOAD_BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                rows.add(parseCsvLine(line));
+                if (rows.size() == LOAD_BATCH_SIZE) {
+                    loaded += insertBatch(tableName, rows);
+                    rows.clear();
                 }
             }
-            else
-                columnStart += attr.length;
+            if (!rows.isEmpty())
+                loaded += insertBatch(tableName, rows);
         }
-        return false;
+        catch (SQLException e) {
+            System.out.println(loaded + " records loaded before the error.");
+            throw e;
+        }
+        finally {
+            reader.close();
+        }
+        return loaded;
+    }
+
+    private static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;    // inside a quoted field
+        boolean wasQuoted = false;    // current field was quoted, keep its spaces
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"')
+                    field.append(c);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+                    field.append(line.charAt(++i));
+                else
+                    quoted = false;
+            }
+            else if (c == '"') {
+                quoted = true;
+                wasQuoted = true;
+                field.setLength(0);    // drop spaces before the quote
+            }
+            else if (c == ',') {
+                fields.add(wasQuoted ? field.toString() : field.toString().trim());
+                field.setLength(0);
+                wasQuoted = false;
+            }
+            else if (!wasQuoted)
+                field.append(c);
+        }
+        fields.add(wasQuoted ? field.toString() : field.toString().trim());
+        return fields;
     }
 
     public int deleteRecord(String tableName)
@@ -237,127 +387,571 @@ public class RecordManager {
             throw new TableNotFoundException(tableName);
 
         int count = 0;
+        CompiledCondition[] compiled = CompiledCondition.compile(table, conditions);
+        FreeSpaceMap fsm = getFreeSpaceMap(table);
 
-        for (int blockOffset = 0; blockOffset < table.blockNum; blockOffset++) {
-            BufferNode bn = bm.getBufferNode(table.name + ".table", blockOffset);
-            byte[] block = bn.data;
-            int recordNum = getRecordNum(block);
-            int recordIndex = 0;
-            int accessedRecordNum = 0;
-            int nextDeleted = getInsertIndex(block);
-            int prevDeleted = -1;
-
-            ArrayList<Index> allTableIndices = cm.getAllIndicesOfTable(tableName);
-
-            while (accessedRecordNum < recordNum) {
-                int pos = getPositionFromIndex(table, recordIndex);
-                if (block[pos] == EMPTY) {    // record is empty, skip
-                    recordIndex++;
-                    continue;
-                }
-
-                byte[] recordBytes = bn.getBytes(pos + 1, table.totalLength);
-                if (matchAllCond(table, recordBytes, conditions)) {
-                    block[pos] = EMPTY;
-                    if (recordIndex < nextDeleted) {
-                        setNextInsertIndex(block, table, prevDeleted, recordIndex);
-                        setNextInsertIndex(block, table, recordIndex, nextDeleted);
-                        prevDeleted = recordIndex;
-                    }
-                    else {
-                        int nextOfNext = getNextInsertIndex(block, table, nextDeleted);
-                        setNextInsertIndex(block, table, nextDeleted, recordIndex);
-                        setNextInsertIndex(block, table, recordIndex, nextOfNext);
-                        nextDeleted = nextOfNext;
-                        prevDeleted = recordIndex;
-                    }
-
-                    decRecordNum(block);
-                    // there remains some space for insertion
-                    if (table.nextInsertBlock > blockOffset)
-                        table.nextInsertBlock = blockOffset;
-
-                    // Delete in index
-                    for (Index idx : allTableIndices) {
-                        byte[] key = Arrays.copyOfRange(recordBytes,
-                                                        idx.pos, idx.pos + idx.columnLength);
-                        im.deleteKey(idx, key);
+        bm.beginScan(table.name + ".table");
+        try {
+            for (int blockOffset = 0; blockOffset < table.blockNum; blockOffset++) {
+                // index maintenance below may read other blocks
+                BufferNode bn = bm.pinBufferNode(table.name + ".table", blockOffset);
+                try {
+                    int recordNum = getRecordNum(bn);
+                    int recordIndex = 0;
+                    int accessedRecordNum = 0;
+                    int nextDeleted = getInsertIndex(bn);
+                    int prevDeleted = -1;
+
+                    ArrayList<Index> allTableIndices = cm.getAllIndicesOfTable(tableName);
+
+                    while (accessedRecordNum < recordNum) {
+                        int pos = getPositionFromIndex(table, recordIndex);
+                        if (bn.getByte(pos) == EMPTY) {    // record is empty, skip
+                            recordIndex++;
+                            continue;
+                        }
+
+                        if (CompiledCondition.matchAll(compiled, bn, pos + 1)) {
+                            bn.setByte(pos, (byte) EMPTY);
+                            if (recordIndex < nextDeleted) {
+                                setNextInsertIndex(bn, table, prevDeleted, recordIndex);
+                                setNextInsertIndex(bn, table, recordIndex, nextDeleted);
+                                prevDeleted = recordIndex;
+                            }
+                            else {
+                                int nextOfNext = getNextInsertIndex(bn, table, nextDeleted);
+                                setNextInsertIndex(bn, table, nextDeleted, recordIndex);
+                                setNextInsertIndex(bn, table, recordIndex, nextOfNext);
+                                nextDeleted = nextOfNext;
+                                prevDeleted = recordIndex;
+                            }
+
+                            decRecordNum(bn);
+                            // there remains some space for insertion
+                            fsm.setFree(blockOffset, true);
+
+                            // Delete in index
+                            for (Index idx : allTableIndices) {
+                                byte[] key = bn.getBytes(pos + 1 + idx.pos, idx.columnLength);
+                                im.deleteKey(idx, key);
+                            }
+
+                            bn.setWritten(true);
+                            count++;
+                        }
+                        recordIndex++;
+                        accessedRecordNum++;
                     }
-
-                    bn.isWritten = true;
-                    count++;
                 }
-                recordIndex++;
-                accessedRecordNum++;
+                finally {
+                    bn.unpin();
+                }
             }
         }
+        finally {
+            bm.endScan(table.name + ".table");
+        }
         return count;
     }
 
-    private String[] bytesToString(Table table, byte[] bytes) {
-        int columnStart = 0;
-        String[] result = new String[table.attrNum];
-        int attrRead = 0;
-
-        for (Attribute attr : table.attributes) {
-            if (attr.type == -1) {
-                byte[] column = Arrays.copyOfRange(bytes, columnStart, columnStart + 4);
-                int value = ByteBuffer.wrap(column).getInt();
-                result[attrRead++] = String.valueOf(value);
+    /*
+    ** The columns a select shows: for each one its attribute and the
+    ** offset of its bytes from the start of the record.  An empty column
+    ** list selects all attributes.
+    */
+    private static class Projection {
+        final Attribute[] attrs;
+        final int[] offsets;
+
+        Projection(Table table, List<String> columns) throws AttributeNotFoundException {
+            List<String> names = columns;
+            if (names.isEmpty()) {
+                names = new ArrayList<String>();
+                for (Attribute attr : table.attributes)
+                    names.add(attr.name);
             }
-            else if (attr.type == 0) {
-                byte[] column = Arrays.copyOfRange(bytes, columnStart, columnStart + 4);
-                float value = ByteBuffer.wrap(column).getFloat();
-                result[attrRead++] = String.valueOf(value);
+            attrs = new Attribute[names.size()];
+            offsets = new int[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                int offset = 0;
+                for (Attribute attr : table.attributes) {
+                    if (attr.name.equals(names.get(i))) {
+                        attrs[i] = attr;
+                        break;
+                    }
+                    offset += attr.length;
+                }
+                if (attrs[i] == null)
+                    throw new AttributeNotFoundException(names.get(i));
+                offsets[i] = offset;
             }
+        }
+
+        String[] getNames() {
+            String[] names = new String[attrs.length];
+            for (int i = 0; i < attrs.length; i++)
+                names[i] = attrs[i].name;
+            return names;
+        }
+    }
+
+    // Decode only the projected columns of the record at recordStart.
+    private String[] recordToStrings(Projection projection, BufferNode block, int recordStart) {
+        String[] result = new String[projection.attrs.length];
+
+        for (int i = 0; i < result.length; i++) {
+            Attribute attr = projection.attrs[i];
+            int columnStart = recordStart + projection.offsets[i];
+            if (attr.type == -1)
+                result[i] = String.valueOf(block.getIntAt(columnStart));
+            else if (attr.type == 0)
+                result[i] = String.valueOf(block.getFloatAt(columnStart));
             else {
-                byte[] column = Arrays.copyOfRange(bytes, columnStart, columnStart + attr.length);
-                result[attrRead++] = new String(column);
+                int end = columnStart + attr.length;
+                while (end > columnStart && block.getByte(end - 1) == 0)    // zero padding
+                    end--;
+                result[i] = block.getString(columnStart, end);
             }
-            columnStart += attr.length;
         }
 
         return result;
     }
 
     public void selectRecord(String tableName)
-        throws TableNotFoundException {
+        throws TableNotFoundException, AttributeNotFoundException {
         ArrayList<Condition> emptyCond = new ArrayList<Condition>();    // Always returns true
         selectRecord(tableName, emptyCond);
     }
 
     public void selectRecord(String tableName, ArrayList<Condition> conditions)
-        throws TableNotFoundException {
+        throws TableNotFoundException, AttributeNotFoundException {
+        selectRecord(tableName, new ArrayList<String>(), conditions);
+    }
+
+    // columns are the attributes to show, all of them if empty
+    public void selectRecord(String tableName, List<String> columns, List<Condition> conditions)
+        throws TableNotFoundException, AttributeNotFoundException {
+        Cursor cursor = openCursor(tableName, columns, conditions);
+        try {
+            displaySelectResult(cursor);
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /*
+    ** Open a cursor over the records of the table that match all the
+    ** conditions.  Rows are decoded one at a time as the caller pulls
+    ** them, so nothing is collected in memory, and only the given columns
+    ** are decoded (all of them if the list is empty); conditions are
+    ** checked on the stored bytes and need no decoding.  A full scan of a
+    ** large table runs on several threads and keeps a bounded number of
+    ** rows ahead of the caller.  The caller must close the cursor.
+    */
+    public Cursor openCursor(String tableName, List<String> columns, List<Condition> conditions)
+        throws TableNotFoundException, AttributeNotFoundException {
         Table table = cm.getTable(tableName);
         if (table == null)
             throw new TableNotFoundException(tableName);
-        Data selectResult = new Data();
-
-        for (int blockOffset = 0; blockOffset < table.blockNum; blockOffset++) {
-            BufferNode bn = bm.getBufferNode(table.name + ".table", blockOffset);
-            byte[] block = bn.data;
-            int recordNum = getRecordNum(block);
-            int recordIndex = 0;
-            int accessedRecordNum = 0;
-
-            while (accessedRecordNum < recordNum) {
-                int pos = getPositionFromIndex(table, recordIndex);
-                if (block[pos] == EMPTY) {    // record is empty, skip
-                    recordIndex++;
+        Projection projection = new Projection(table, columns);
+
+        Cursor cursor = openIndexCursor(table, projection, conditions);
+        if (cursor == null && SCAN_POOL != null && table.blockNum >= PARALLEL_SCAN_MIN_BLOCKS)
+            cursor = new ParallelScanCursor(table, projection, conditions);
+        if (cursor == null)
+            cursor = new ScanCursor(table, projection, conditions);
+        return cursor;
+    }
+
+    /*
+    ** Try the indices before scanning the whole table: first an equality
+    ** lookup, then a range scan over the index leaves.  Returns null if
+    ** no index can be used; the caller then does a full scan.
+    ** Indices on non-unique attributes keep only one record per key, so
+    ** they are never used here.
+    */
+    private Cursor openIndexCursor(Table table, Projection projection, List<Condition> conditions) {
+        Cursor cursor = openEqualCursor(table, projection, conditions);
+        if (cursor == null)
+            cursor = openRangeCursor(table, projection, conditions);
+        return cursor;
+    }
+
+    /*
+    ** If one of the conditions is an equality on a unique or primary key
+    ** int or char attribute that has an index, find the only possible
+    ** record through the index; the cursor checks the remaining
+    ** conditions on it.
+    **
+    ** Index entries point to (block number, byte position of the record).
+    ** A miss means there is no such record.  An entry that does not lead
+    ** to a matching record is stale; null is returned and the table is
+    ** scanned.  Float equality is left to openRangeCursor, because 0.0
+    ** and -0.0 are equal but are different keys in the index.
+    */
+    private Cursor openEqualCursor(Table table, Projection projection, List<Condition> conditions) {
+        for (Condition cond : conditions) {
+            if (cond.operate != Condition.OPERATION_EQUAL)
+                continue;
+            Attribute attr = getAttribute(table, cond.attribute_name);
+            if (attr == null || attr.type == 0 || attr.index.equals("")
+                || !(attr.isUnique || attr.isPrimaryKey))
+                continue;
+            Index idx = cm.getIndex(attr.index);
+            if (idx == null)
+                continue;
+
+            byte[] key;
+            try {
+                key = getColumnBytes(cond.value, attr);
+            }
+            catch (AttributeFormatException e) {
+                continue;    // let the scan report the malformed value
+            }
+            List<offsetInfo> found = new ArrayList<offsetInfo>(1);
+            if (key.length > idx.columnLength)    // longer than the column, nothing can be equal
+                return new IndexCursor(table, projection, conditions, found.iterator());
+            key = Arrays.copyOf(key, idx.columnLength);
+
+            offsetInfo off;
+            try {
+                off = im.searchEqual(idx, key);
+            }
+            catch (Exception e) {
+                continue;
+            }
+            if (off == null)
+                return new IndexCursor(table, projection, conditions, found.iterator());
+            if (off.offsetInfile < 0 || off.offsetInfile >= table.blockNum
+                || !isRecordPosition(table, off.offsetInBlock))
+                return null;
+
+            BufferNode bn = bm.pinBufferNodeForRead(table.name + ".table", off.offsetInfile);
+            try {
+                int pos = off.offsetInBlock;
+                if (bn.getByte(pos) == EMPTY || !CompiledCondition.compile(table, cond).matches(bn, pos + 1))
+                    return null;    // stale entry, scan instead
+            }
+            finally {
+                bn.unpin();
+            }
+            found.add(off);
+            return new IndexCursor(table, projection, conditions, found.iterator());
+        }
+        return null;
+    }
+
+    /*
+    ** If some conditions bound a unique or primary key int or float
+    ** attribute that has an index, walk the index leaves from the lower
+    ** bound to the upper bound; the cursor checks all conditions on each
+    ** record found.  The bounds are always taken as inclusive and every
+    ** record is checked again, so the index only has to give a superset
+    ** of the result.  Char indices are not used: their keys are zero
+    ** padded, which does not order the same way as the conditions compare.
+    **
+    ** Records come out in key order instead of storage order.
+    */
+    private Cursor openRangeCursor(Table table, Projection projection, List<Condition> conditions) {
+        for (Attribute attr : table.attributes) {
+            if (attr.type > 0 || attr.index.equals("") || !(attr.isUnique || attr.isPrimaryKey))
+                continue;
+            Index idx = cm.getIndex(attr.index);
+            if (idx == null)
+                continue;
+
+            // ints and floats are both exact as doubles
+            double low = 0, high = 0;
+            boolean hasLow = false, hasHigh = false, usable = true;
+            for (Condition cond : conditions) {
+                if (!cond.attribute_name.equals(attr.name) || cond.operate == Condition.OPERATION_NOT_EQUAL)
                     continue;
+                double value;
+                try {
+                    value = attr.type == -1 ? Integer.parseInt(cond.value) : Float.parseFloat(cond.value);
+                }
+                catch (NumberFormatException e) {
+                    usable = false;    // let the scan report the malformed value
+                    break;
+                }
+                if (Double.isNaN(value)) {
+                    usable = false;
+                    break;
+                }
+                if (cond.operate != Condition.OPERATION_LESS && cond.operate != Condition.OPERATION_LESS_EQUAL) {
+                    low = hasLow ? Math.max(low, value) : value;
+                    hasLow = true;
                 }
+                if (cond.operate != Condition.OPERATION_MORE && cond.operate != Condition.OPERATION_MORE_EQUAL) {
+                    high = hasHigh ? Math.min(high, value) : value;
+                    hasHigh = true;
+                }
+            }
+            if (!usable || !(hasLow || hasHigh))
+                continue;
+            if (hasLow && hasHigh && low > high)    // nothing can match
+                return new IndexCursor(table, projection, conditions, new ArrayList<offsetInfo>().iterator());
+
+            byte[] lowKey = hasLow ? getKeyBytes(attr, low, true) : null;
+            byte[] highKey = hasHigh ? getKeyBytes(attr, high, false) : null;
+            return new IndexCursor(table, projection, conditions, im.searchBetween(idx, lowKey, highKey));
+        }
+        return null;
+    }
 
-                byte[] recordBytes = bn.getBytes(pos + 1, table.totalLength);
-                if (matchAllCond(table, recordBytes, conditions)) {
-                    byte[] bytes = bn.getBytes(pos + 1, table.totalLength);
-                    selectResult.add(new Row(bytesToString(table, bytes)));
+    // Index key of a bound.  The index orders -0.0 before 0.0, so a zero
+    // bound is widened to take in both.
+    private static byte[] getKeyBytes(Attribute attr, double bound, boolean isLow) {
+        if (attr.type == -1)
+            return ByteBuffer.allocate(4).putInt((int) bound).array();
+        float value = (float) bound;
+        if (value == 0)
+            value = isLow ? -0.0f : 0.0f;
+        return ByteBuffer.allocate(4).putFloat(value).array();
+    }
+
+    /*
+    ** Full table scan in block order.  The block being read stays pinned
+    ** between calls to next() and is released when the scan moves on to
+    ** the next block or the cursor is closed.
+    */
+    private class ScanCursor implements Cursor {
+        private final Table table;
+        private final Projection projection;
+        private final CompiledCondition[] conditions;
+        private final String filename;
+        private int blockOffset = -1;
+        private BufferNode bn;    // null when no block is pinned
+        private BufferNode previous;    // last block read, reused for the next one if it is a mapped view
+        private int recordNum;
+        private int recordIndex;
+        private int accessedRecordNum;
+        private boolean closed = false;
+
+        ScanCursor(Table table, Projection projection, List<Condition> conditions) {
+            this.table = table;
+            this.projection = projection;
+            this.conditions = CompiledCondition.compile(table, conditions);
+            filename = table.name + ".table";
+            bm.beginScan(filename);
+        }
+
+        public Row next() {
+            while (!closed) {
+                if (bn == null || accessedRecordNum >= recordNum) {
+                    if (bn != null) {
+                        bn.unpin();
+                        bn = null;
+                    }
+                    if (++blockOffset >= table.blockNum)
+                        return null;
+                    bn = bm.pinBufferNodeForRead(filename, blockOffset, previous);
+                    previous = bn;
+                    recordNum = getRecordNum(bn);
+                    recordIndex = 0;
+                    accessedRecordNum = 0;
+                    continue;
                 }
-                recordIndex++;
+
+                int pos = getPositionFromIndex(table, recordIndex++);
+                if (bn.getByte(pos) == EMPTY)    // record is empty, skip
+                    continue;
                 accessedRecordNum++;
+                if (CompiledCondition.matchAll(conditions, bn, pos + 1))
+                    return new Row(recordToStrings(projection, bn, pos + 1));
             }
+            return null;
         }
 
-        displaySelectResult(table, selectResult);
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (bn != null) {
+                bn.unpin();
+                bn = null;
+            }
+            bm.endScan(filename);
+        }
+
+        public String[] getColumnNames() {
+            return projection.getNames();
+        }
+    }
+
+    /*
+    ** Full table scan split into ranges of SCAN_RANGE_BLOCKS blocks that
+    ** are scanned by the tasks of SCAN_POOL.  Each task pins its blocks
+    ** one at a time, checks the conditions and decodes the matching rows
+    ** into a list of its own; the compiled conditions and the projection
+    ** are never changed after they are built, so the tasks share them.
+    **
+    ** Rows are returned range by range in block order, the same order as
+    ** ScanCursor.  Only a window of ranges is in flight at a time, so the
+    ** rows held in memory stay bounded however large the table is: when
+    ** the caller has taken all rows of the oldest range, the next range
+    ** is started.
+    */
+    private class ParallelScanCursor implements Cursor {
+        private final Table table;
+        private final Projection projection;
+        private final CompiledCondition[] conditions;
+        private final String filename;
+        private final int blockNum;    // blocks at the start of the scan
+        private final ArrayDeque<ForkJoinTask<List<Row>>> pending = new ArrayDeque<ForkJoinTask<List<Row>>>();
+        private int nextBlock = 0;     // first block not yet given to a task
+        private Iterator<Row> rows;    // rows of the oldest finished range
+        private boolean closed = false;
+
+        ParallelScanCursor(Table table, Projection projection, List<Condition> conditions) {
+            this.table = table;
+            this.projection = projection;
+            this.conditions = CompiledCondition.compile(table, conditions);
+            filename = table.name + ".table";
+            blockNum = table.blockNum;
+            bm.beginScan(filename);
+            for (int i = 0; i < 2 * SCAN_PARALLELISM; i++)
+                submitRange();
+        }
+
+        private void submitRange() {
+            if (nextBlock >= blockNum)
+                return;
+            int end = Math.min(nextBlock + SCAN_RANGE_BLOCKS, blockNum);
+            pending.add(SCAN_POOL.submit(new RangeScan(nextBlock, end)));
+            nextBlock = end;
+        }
+
+        public Row next() {
+            while (!closed) {
+                if (rows != null && rows.hasNext())
+                    return rows.next();
+                ForkJoinTask<List<Row>> task = pending.poll();
+                if (task == null)
+                    return null;
+                rows = task.join().iterator();
+                submitRange();
+            }
+            return null;
+        }
+
+        // Ranges not started yet are cancelled; running ones are waited
+        // for, so that no task still reads the table after the statement.
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            rows = null;
+            for (ForkJoinTask<List<Row>> task : pending) {
+                task.cancel(false);
+                task.quietlyJoin();
+            }
+            pending.clear();
+            bm.endScan(filename);
+        }
+
+        public String[] getColumnNames() {
+            return projection.getNames();
+        }
+
+        // the matching rows of blocks [from, to)
+        private class RangeScan extends RecursiveTask<List<Row>> {
+            private static final long serialVersionUID = 1L;
+
+            private final int from;
+            private final int to;
+
+            RangeScan(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            protected List<Row> compute() {
+                List<Row> result = new ArrayList<Row>();
+                BufferNode bn = null;
+                for (int blockOffset = from; blockOffset < to; blockOffset++) {
+                    bn = bm.pinBufferNodeForRead(filename, blockOffset, bn);
+                    try {
+                        int recordNum = getRecordNum(bn);
+                        int recordIndex = 0;
+                        int accessedRecordNum = 0;
+                        while (accessedRecordNum < recordNum) {
+                            int pos = getPositionFromIndex(table, recordIndex++);
+                            if (bn.getByte(pos) == EMPTY)    // record is empty, skip
+                                continue;
+                            accessedRecordNum++;
+                            if (CompiledCondition.matchAll(conditions, bn, pos + 1))
+                                result.add(new Row(recordToStrings(projection, bn, pos + 1)));
+                        }
+                    }
+                    finally {
+                        bn.unpin();
+                    }
+                }
+                return result;
+            }
+        }
+    }
+
+    /*
+    ** Records at the positions given by an index, checked against all the
+    ** conditions.  A table block is pinned only while one record is read.
+    */
+    private class IndexCursor implements Cursor {
+        private final Table table;
+        private final Projection projection;
+        private final CompiledCondition[] conditions;
+        private final Iterator<offsetInfo> positions;
+        private BufferNode previous;    // last block read, reused for the next one if it is a mapped view
+
+        IndexCursor(Table table, Projection projection, List<Condition> conditions,
+                    Iterator<offsetInfo> positions) {
+            this.table = table;
+            this.projection = projection;
+            this.conditions = CompiledCondition.compile(table, conditions);
+            this.positions = positions;
+        }
+
+        public Row next() {
+            while (positions.hasNext()) {
+                offsetInfo off = positions.next();
+                if (off.offsetInfile < 0 || off.offsetInfile >= table.blockNum
+                    || !isRecordPosition(table, off.offsetInBlock))
+                    continue;
+                BufferNode bn = bm.pinBufferNodeForRead(table.name + ".table", off.offsetInfile, previous);
+                previous = bn;
+                try {
+                    int pos = off.offsetInBlock;
+                    if (bn.getByte(pos) != EMPTY && CompiledCondition.matchAll(conditions, bn, pos + 1))
+                        return new Row(recordToStrings(projection, bn, pos + 1));
+                }
+                finally {
+                    bn.unpin();
+                }
+            }
+            return null;
+        }
+
+        public void close() {}
+
+        public String[] getColumnNames() {
+            return projection.getNames();
+        }
+    }
+
+    private Attribute getAttribute(Table table, String name) {
+        for (Attribute attr : table.attributes)
+            if (attr.name.equals(name))
+                return attr;
+        return null;
+    }
+
+    // whether pos is the start of a record slot in a block of this table
+    private boolean isRecordPosition(Table table, int pos) {
+        int recordSize = table.totalLength + POINTER_SIZE;
+        return pos >= HEADER_SIZE && (pos - HEADER_SIZE) % recordSize == 0
+            && pos + recordSize <= bm.blockSize;
     }
 
     private static String join(String[] l, String delimiter) {
@@ -372,16 +966,16 @@ public class RecordManager {
         return builder.toString();
     }
 
-    private void displaySelectResult(Table table, Data result) {
-        if (result.isEmpty()) {
+    // Rows are printed as they come out of the cursor; the header is
+    // printed together with the first row.
+    private void displaySelectResult(Cursor cursor) {
+        Row row = cursor.next();
+        if (row == null) {
             System.out.println("(EMPTY)");
         }
         else {
-            String[] attrs = new String[table.attributes.size()];
-            for (int i = 0; i < table.attributes.size(); i++)
-                attrs[i] = table.attributes.get(i).name;
-            System.out.println(join(attrs, "|"));
-            for (Row row : result.rows) {
+            System.out.println(join(cursor.getColumnNames(), "|"));
+            for (; row != null; row = cursor.next()) {
                 System.out.println(join(row.columns, "|"));
             }
         }
@@ -390,8 +984,11 @@ public class RecordManager {
     public void dropTable(Table table) {
         String filename = table.name + ".table";
         try {
+            bm.setInvalid(filename);    // drop cached blocks and close the file handle first
             File f = new File(filename);
             f.delete();
+            freeSpaceMaps.remove(table.name);
+            new FreeSpaceMap(table.name).delete();
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -404,6 +1001,9 @@ public class RecordManager {
             File f = new File(filename);
             f.createNewFile();
             bm.addBlockInFile(table);
+            FreeSpaceMap fsm = new FreeSpaceMap(table.name);    // replaces any map left by an older table
+            fsm.setFree(0, true);
+            freeSpaceMaps.put(table.name, fsm);
         }
         catch (Exception e) {
             e.printStackTrace();
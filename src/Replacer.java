@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 缓冲区替换策略.
+ * BufferManager 只通过这个接口决定换出哪个块, 具体策略可以替换.
+ * access / accessScan 只在块被读入或新增时调用. 命中时 BufferManager 不加锁, 只置块的引用位
+ * (BufferNode.reference), 各策略在 victim 中用 clearReferenced 读取并清零, 把命中过的块当作刚被访问过.
+ * 除 forgetFile (只在删除表或索引时调用) 外, 所有操作都应为 O(1) (CLOCK 的 victim 为均摊 O(1)), 不随缓冲区大小增长.
+ */
+interface Replacer {
+
+    // 记录一次对 node 的访问(读入或新增). node 第一次被访问时开始参与替换.
+    void access(BufferNode node);
+
+    // 记录一次顺序扫描中对 node 的访问. 扫描读过的块一般不会很快再被用到,
+    // 策略可以让它们尽早被换出, 不挤掉 B+ 树节点等常用的块. 默认与 access 相同.
+    default void accessScan(BufferNode node) {
+        access(node);
+    }
+
+    // node 被清空或被置为无效, 不再参与替换.
+    void remove(BufferNode node);
+
+    // 选出一个可以被替换出去的块, 被钉住(pin)的块不会被选中.
+    // 没有可替换的块时返回 null. 选中的块不一定真的被换出(可能随即被别的线程钉住), 换出时调用者再调用 evict.
+    BufferNode victim();
+
+    // node 已经被占用, 确实要被换出, 不再参与替换. 此时块中还是原来的文件名和块号. 默认与 remove 相同.
+    default void evict(BufferNode node) {
+        remove(node);
+    }
+
+    // 文件已被删除(删除表或索引), 忘掉关于它的块的所有记录. 块本身已经通过 remove 移出.
+    default void forgetFile(String fileName) {}
+
+    // 根据名字创建替换策略, 目前支持 "2q", "clock" 和 "lru".
+    static Replacer create(String name, BufferNode[] buffer) {
+        if (name.equalsIgnoreCase("2q"))
+            return new TwoQueueReplacer(buffer.length);
+        else if (name.equalsIgnoreCase("lru"))
+            return new LRUReplacer();
+        else if (name.equalsIgnoreCase("clock"))
+            return new ClockReplacer(buffer);
+        throw new IllegalArgumentException("Unknown buffer replacer: " + name);
+    }
+}
+
+// CLOCK 算法: 每个块一个引用位, 访问时置位; 指针扫过时清零, 遇到引用位为 0 的块就将其替换.
+// 读入时的访问记在 referenced 中, 命中记在块自己的引用位中, 两者都算.
+class ClockReplacer implements Replacer {
+    private BufferNode[] buffer;
+    private boolean[] referenced;
+    private boolean[] inUse;
+    private int hand = 0;
+
+    ClockReplacer(BufferNode[] buffer) {
+        this.buffer = buffer;
+        referenced = new boolean[buffer.length];
+        inUse = new boolean[buffer.length];
+    }
+
+    public void access(BufferNode node) {
+        referenced[node.bufferIndex] = true;
+        inUse[node.bufferIndex] = true;
+    }
+
+    // 扫描读入的块不置引用位, 指针第一次扫过就可以换出; 已经在用的块保持原状.
+    public void accessScan(BufferNode node) {
+        inUse[node.bufferIndex] = true;
+    }
+
+    public void remove(BufferNode node) {
+        referenced[node.bufferIndex] = false;
+        inUse[node.bufferIndex] = false;
+    }
+
+    public BufferNode victim() {
+        // 最多扫两圈: 第一圈清掉所有引用位, 第二圈一定能找到可替换的块(如果存在的话).
+        for (int i = 0; i < 2 * buffer.length; i++) {
+            int index = hand;
+            hand = (hand + 1) % buffer.length;
+            if (!inUse[index])
+                continue;
+            if (buffer[index].isPinned())
+                continue;
+            boolean hit = buffer[index].clearReferenced();
+            if (referenced[index] || hit) {
+                referenced[index] = false;
+                continue;
+            }
+            return buffer[index];
+        }
+        return null;
+    }
+}
+
+// LRU: 按访问顺序排列的 LinkedHashMap, 从队头开始选择替换的块.
+// 命中不加锁, 所以队列顺序不是精确的 LRU: 命中过的块在选择替换块时才移到队尾(second chance).
+class LRUReplacer implements Replacer {
+    private LinkedHashMap<BufferNode, Boolean> order = new LinkedHashMap<BufferNode, Boolean>(16, 0.75f, true);
+
+    public void access(BufferNode node) {
+        order.put(node, Boolean.TRUE);
+    }
+
+    public void remove(BufferNode node) {
+        order.remove(node);
+    }
+
+    public BufferNode victim() {
+        return firstUnreferenced(order);
+    }
+
+    // 从队头开始找一个没有被钉住、引用位为 0 的块; 途中遇到的引用位为 1 的块清零后移到队尾.
+    // 没钉住的块都被命中过时, 第二轮一定能选中一个.
+    static BufferNode firstUnreferenced(LinkedHashMap<BufferNode, Boolean> queue) {
+        for (int pass = 0; pass < 2; pass++) {
+            BufferNode found = null;
+            ArrayList<BufferNode> hit = null;
+            for (BufferNode node : queue.keySet()) {
+                if (node.isPinned())
+                    continue;
+                if (node.clearReferenced()) {
+                    if (hit == null)
+                        hit = new ArrayList<BufferNode>();
+                    hit.add(node);
+                    continue;
+                }
+                found = node;
+                break;
+            }
+            if (hit == null)
+                return found;
+            for (BufferNode node : hit) {
+                queue.remove(node);
+                queue.put(node, Boolean.TRUE);
+            }
+            if (found != null)
+                return found;
+        }
+        return null;
+    }
+}
+
+// 简化的 2Q 算法 (Johnson & Shasha, 1994), 抗扫描:
+// 新读入的块先进入 FIFO 队列 A1in; 从 A1in 换出的块只把 (文件名, 块号) 记入幽灵队列 A1out;
+// 块不在缓冲区但在 A1out 中时说明它不久前被用过, 再次读入时直接进入 LRU 队列 Am.
+// 只被访问一次的块(例如大表扫描)只会在 A1in 中流过, 不会挤掉 Am 中的常用块.
+// 顺序扫描的访问(accessScan)总是进入 A1in, 换出时也不记入 A1out, 反复扫描也不会进入 Am.
+// 命中按引用位在 victim 中处理: Am 中命中过的块移到队尾; A1in 中的重复访问视为同一次访问,
+// 只有扫描读入的块又被普通访问命中时, 才按新读入的块移到 A1in 队尾.
+class TwoQueueReplacer implements Replacer {
+    private LinkedHashMap<BufferNode, Boolean> a1in = new LinkedHashMap<BufferNode, Boolean>();
+    private LinkedHashMap<BufferNode, Boolean> am = new LinkedHashMap<BufferNode, Boolean>(16, 0.75f, true);
+    private LinkedHashMap<String, Boolean> a1out;
+    private HashSet<BufferNode> scanned = new HashSet<BufferNode>();
+    private int maxIn;
+
+    TwoQueueReplacer(int bufferSize) {
+        // 论文中推荐的参数: A1in 占缓冲区的 1/4, A1out 记住缓冲区一半数量的块.
+        maxIn = Math.max(1, bufferSize / 4);
+        final int maxOut = Math.max(1, bufferSize / 2);
+        a1out = new LinkedHashMap<String, Boolean>() {
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxOut;
+            }
+        };
+    }
+
+    private static String key(BufferNode node) {
+        return node.fileName + "#" + node.blockOffset;
+    }
+
+    public void access(BufferNode node) {
+        if (am.containsKey(node)) {
+            am.get(node); // 移到队尾
+            return;
+        }
+        if (a1in.containsKey(node)) {
+            if (scanned.remove(node)) { // 扫描读入的块又被普通访问用到了, 按新读入的块对待
+                a1in.remove(node);
+                a1in.put(node, Boolean.TRUE);
+            }
+            return; // A1in 中的重复访问视为同一次访问, 不改变顺序
+        }
+        if (a1out.remove(key(node)) != null)
+            am.put(node, Boolean.TRUE);
+        else
+            a1in.put(node, Boolean.TRUE);
+    }
+
+    public void accessScan(BufferNode node) {
+        if (am.containsKey(node) || a1in.containsKey(node))
+            return;
+        a1in.put(node, Boolean.TRUE);
+        scanned.add(node);
+    }
+
+    public void remove(BufferNode node) {
+        a1in.remove(node);
+        am.remove(node);
+        scanned.remove(node);
+    }
+
+    public BufferNode victim() {
+        BufferNode node = null;
+        if (a1in.size() > maxIn || am.isEmpty())
+            node = firstInA1in();
+        if (node == null)
+            node = LRUReplacer.firstUnreferenced(am);
+        if (node == null)
+            node = firstInA1in();
+        return node;
+    }
+
+    // 真正从 A1in 换出的块才记入 A1out.
+    public void evict(BufferNode node) {
+        if (a1in.containsKey(node) && !scanned.contains(node))
+            a1out.put(key(node), Boolean.TRUE);
+        remove(node);
+    }
+
+    public void forgetFile(String fileName) {
+        String prefix = fileName + "#";
+        Iterator<String> it = a1out.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix))
+                it.remove();
+        }
+    }
+
+    // A1in 按 FIFO 选择. 扫描读入后又被普通访问命中过的块不再算扫描读入的, 移到队尾.
+    private BufferNode firstInA1in() {
+        for (int pass = 0; pass < 2; pass++) {
+            BufferNode found = null;
+            ArrayList<BufferNode> hit = null;
+            for (BufferNode node : a1in.keySet()) {
+                if (node.isPinned())
+                    continue;
+                if (node.clearReferenced() && scanned.remove(node)) {
+                    if (hit == null)
+                        hit = new ArrayList<BufferNode>();
+                    hit.add(node);
+                    continue;
+                }
+                found = node;
+                break;
+            }
+            if (hit == null)
+                return found;
+            for (BufferNode node : hit) {
+                a1in.remove(node);
+                a1in.put(node, Boolean.TRUE);
+            }
+            if (found != null)
+                return found;
+        }
+        return null;
+    }
+}
@@ -1,5 +1,6 @@
 # 用于生成插入数据的 SQL 脚本。
 # 在 MiniSQL 中使用 execfile filename; 执行。
+# 同时生成同样数据的 test.csv, 建表后可用 load data from 'test.csv' into Person; 批量导入。
 
 from random import sample, uniform
 from string import ascii_letters as CHARS
@@ -7,6 +8,7 @@ from string import ascii_letters as CHARS
 def main():
 	record_num = input("How many records do you want?\n")
 	f = open("test.sql", "w")
+	csv = open("test.csv", "w")
 	CREATE = "create table Person ( id int, name char(5), salary float, primary key (id) );"
 	f.write(CREATE+'\n')
 
@@ -15,6 +17,7 @@ def main():
 		salary = str(uniform(1, 100))[:4]
 		insert = "insert into Person values (" + str(i) + ", '" + name + "', " + salary + ");"
 		f.write(insert+'\n')
+		csv.write(str(i) + "," + name + "," + salary + '\n')
 
 if __name__ == '__main__':
 	main()